@@ -0,0 +1,29 @@
+#!/bin/sh
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+# Reads a file written by convert_measurements_binary.sh. Without one, ./measurements.txt is converted
+# to a temporary file first, so that test.sh can check the engine against the text samples.
+JAVA_OPTS="--enable-preview"
+CLASS_PATH="target/average-1.0.0-SNAPSHOT.jar"
+if [ "$#" -eq 0 ]; then
+  BINARY=$(mktemp)
+  trap 'rm -f "$BINARY"' EXIT
+  java $JAVA_OPTS --class-path $CLASS_PATH dev.morling.onebrc.BinaryMeasurements ./measurements.txt "$BINARY" > /dev/null
+  java $JAVA_OPTS --class-path $CLASS_PATH dev.morling.onebrc.CalculateAverage_albertoventurini_binary "$BINARY"
+else
+  java $JAVA_OPTS --class-path $CLASS_PATH dev.morling.onebrc.CalculateAverage_albertoventurini_binary "$@"
+fi
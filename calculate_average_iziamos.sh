@@ -15,11 +15,19 @@
 #  limitations under the License.
 #
 
-JAVA_OPTS="--enable-preview
+# --vector is an experiment kept for comparison, about 2x slower than the default scalar cursor (see
+# VectorLoopCursor). It boxes vectors wherever C2 doesn't scalarize them, so it needs a heap that gets collected.
+if [ "$1" = "--vector" ]; then
+  echo "--vector is experimental and slower than the default cursor" >&2
+  HEAP_OPTS="-XX:+UseSerialGC -Xms64m -Xmx64m"
+else
+  HEAP_OPTS="-XX:+UseEpsilonGC -Xms16m -Xmx16m"
+fi
+JAVA_OPTS="--enable-preview --add-modules jdk.incubator.vector
   -XX:+UnlockExperimentalVMOptions \
-  -XX:+UseEpsilonGC -Xms16m -Xmx16m -XX:-AlwaysPreTouch \
+  $HEAP_OPTS -XX:-AlwaysPreTouch \
   -XX:-TieredCompilation -XX:CICompilerCount=1 -XX:CompilationMode=high-only \
   -XX:C1MaxTrivialSize=500 -XX:-UseCountedLoopSafepoints -XX:+UseCMoveUnconditionally -XX:+DisableAttachMechanism \
   -XX:-PreserveFramePointer -Xnoclassgc -disablesystemassertions -XX:-UsePerfData  \
   -XX:-UseTransparentHugePages -XX:-UseCompressedOops"
-java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_iziamos
+java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.CalculateAverage_iziamos "$@"
@@ -0,0 +1,21 @@
+#!/bin/sh
+#
+#  Copyright 2023 The original authors
+#
+#  Licensed under the Apache License, Version 2.0 (the "License");
+#  you may not use this file except in compliance with the License.
+#  You may obtain a copy of the License at
+#
+#      http://www.apache.org/licenses/LICENSE-2.0
+#
+#  Unless required by applicable law or agreed to in writing, software
+#  distributed under the License is distributed on an "AS IS" BASIS,
+#  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+#  See the License for the specific language governing permissions and
+#  limitations under the License.
+#
+
+# Runs a query on serve_albertoventurini_adaptive.sh, with the arguments of calculate_average_albertoventurini_adaptive.sh.
+# The client does next to nothing, so it runs with the quickest starting JVM options.
+JAVA_OPTS="--enable-preview -XX:TieredStopAtLevel=1 -XX:+UseSerialGC -Xshare:auto"
+java $JAVA_OPTS --class-path target/average-1.0.0-SNAPSHOT.jar dev.morling.onebrc.AggregationClient_albertoventurini_adaptive "$@"
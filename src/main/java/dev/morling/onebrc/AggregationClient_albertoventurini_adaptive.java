@@ -0,0 +1,102 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Sends the query given by its arguments to {@link AggregationServer_albertoventurini_adaptive} and prints
+ * the result, exiting with 1 if the query failed. Paths (inputs, the files of options like --catalog and the
+ * --block-cache directory) are made absolute first, and ./measurements.txt is added if there's no input.
+ * <p>
+ * Usage: [--socket=PATH] [CalculateAverage_albertoventurini_adaptive arguments]...
+ */
+public class AggregationClient_albertoventurini_adaptive {
+
+    public static void main(String[] args) throws IOException {
+        Path socket = AggregationServer_albertoventurini_adaptive.DEFAULT_SOCKET;
+        List<String> request = new ArrayList<>();
+        boolean hasInput = false;
+        for (String arg : args) {
+            if (arg.contains("\n") || arg.isEmpty()) {
+                throw new IllegalArgumentException("Arguments can't be empty or contain line breaks: " + arg);
+            }
+            String file = CalculateAverage_albertoventurini_adaptive.optionFile(arg);
+            if (arg.startsWith("--socket=")) {
+                socket = Path.of(arg.substring("--socket=".length()));
+            }
+            else if (file != null) {
+                request.add(arg.substring(0, arg.length() - file.length()) + Path.of(file).toAbsolutePath());
+            }
+            else if (arg.startsWith("--block-cache=")) {
+                // Not an option file: the identity of the directory changes as the cache fills, so it stays out of the result cache key
+                request.add("--block-cache=" + Path.of(arg.substring("--block-cache=".length())).toAbsolutePath());
+            }
+            else if (arg.startsWith("--")) {
+                request.add(arg);
+            }
+            else {
+                // Not resolved with Path, as it may be a glob: its base directory is the part before the pattern
+                request.add(arg.startsWith("/") ? arg : Path.of("").toAbsolutePath() + "/" + arg);
+                hasInput = true;
+            }
+        }
+        if (!hasInput) {
+            request.add(Path.of(CalculateAverage_albertoventurini_adaptive.FILE).toAbsolutePath().normalize().toString());
+        }
+
+        try (SocketChannel channel = SocketChannel.open(UnixDomainSocketAddress.of(socket))) {
+            OutputStream out = Channels.newOutputStream(channel);
+            out.write((String.join("\n", request) + "\n\n").getBytes(StandardCharsets.UTF_8));
+            out.flush();
+
+            InputStream in = new BufferedInputStream(Channels.newInputStream(channel));
+            String status = readLine(in);
+            if (status.startsWith("OK ")) {
+                long length = Long.parseLong(status.substring(3));
+                long copied = in.transferTo(System.out);
+                System.out.flush();
+                if (copied != length) {
+                    throw new IOException("Expected " + length + " bytes of result, got " + copied);
+                }
+            }
+            else {
+                System.err.println(status);
+                System.exit(1);
+            }
+        }
+    }
+
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != -1 && b != '\n') {
+            line.write(b);
+        }
+        return line.toString(StandardCharsets.UTF_8);
+    }
+}
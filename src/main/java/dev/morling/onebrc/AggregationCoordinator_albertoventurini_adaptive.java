@@ -0,0 +1,268 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Dialect;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Segment;
+
+/**
+ * Spreads one aggregation over {@link AggregationWorker_albertoventurini_adaptive} JVMs, on this machine or
+ * on others that see the input files under the same paths (e.g. on shared storage).
+ * <p>
+ * The inputs are cut into line-aligned ranges of about --range-size MB (by default, eight per worker, at
+ * least 16 MB). Each worker is sent one range at a time and gets the next one when it's done, so that
+ * faster machines take more. Once the ranges run out, each worker sends the min/max/sum/count of its
+ * stations in binary, and the coordinator merges them and prints the result like
+ * CalculateAverage_albertoventurini_adaptive. If a worker fails, can't be reached or doesn't answer within
+ * --timeout seconds (for a range or for its result), its ranges are sent to the others in another round: a
+ * worker only sends results at the end of its job, so nothing is counted twice.
+ * <p>
+ * Plain aggregation only, in any of the engine's text dialects. Block gzip files aren't split.
+ * == Protocol ==
+ * Big-endian, one job per connection. The coordinator sends the dialect options (int count, then each as
+ * modified UTF-8), then for each range RANGE, the path, start and end offsets, and reads DONE (or FAILED
+ * and a message) after each. After the last one it sends FINISH and reads RESULT, the station count and
+ * for each station the length of its UTF-8 name, the name, and min, max, sum and count as longs.
+ * <p>
+ * Usage: --workers=HOST:PORT,... [--range-size=MB] [--timeout=SECONDS, 300 by default] [--delimiter=C]
+ * [--precision=N] [--header-lines=N] [--comment=C] [--crlf] [file | directory | glob]...
+ */
+public class AggregationCoordinator_albertoventurini_adaptive {
+
+    static final int DEFAULT_PORT = 7341;
+
+    static final byte FINISH = 0;
+    static final byte RANGE = 1;
+    static final byte DONE = 2;
+    static final byte RESULT = 3;
+    static final byte FAILED = 4;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 10_000;
+    private static final int DEFAULT_TIMEOUT_SECONDS = 300;
+    private static final long MIN_RANGE_SIZE = 16 * 1024 * 1024;
+
+    private record Range(Path path, long start, long end) {
+    }
+
+    public static void main(String[] args) throws Exception {
+        List<String> workers = new ArrayList<>();
+        long rangeSize = 0;
+        int timeoutMillis = DEFAULT_TIMEOUT_SECONDS * 1000;
+        List<String> dialectOptions = new ArrayList<>();
+        List<String> inputs = new ArrayList<>();
+        Dialect dialect = Dialect.DEFAULT;
+        for (String arg : args) {
+            if (arg.startsWith("--workers=")) {
+                workers.addAll(Arrays.asList(arg.substring("--workers=".length()).split(",")));
+            }
+            else if (arg.startsWith("--range-size=")) {
+                rangeSize = Long.parseLong(arg.substring("--range-size=".length())) * 1024 * 1024;
+            }
+            else if (arg.startsWith("--timeout=")) {
+                timeoutMillis = Math.toIntExact(Long.parseLong(arg.substring("--timeout=".length())) * 1000);
+            }
+            else if (dialect.withOption(arg) != null) {
+                dialect = dialect.withOption(arg);
+                dialectOptions.add(arg);
+            }
+            else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else {
+                inputs.add(arg);
+            }
+        }
+        if (workers.isEmpty()) {
+            throw new IllegalArgumentException("No workers, use --workers=HOST:PORT,...");
+        }
+
+        // Only mapped to find the line ends
+        List<MemorySegment> files = new ArrayList<>();
+        List<Path> paths = CalculateAverage_albertoventurini_adaptive.inputFiles(inputs.isEmpty() ? List.of(CalculateAverage_albertoventurini_adaptive.FILE) : inputs);
+        long size = 0;
+        for (Path path : paths) {
+            MemorySegment data = CalculateAverage_albertoventurini_adaptive.mapFile(path);
+            if (BlockGzip.isBlockGzip(data)) {
+                throw new IllegalArgumentException("Block gzip files can't be split between workers: " + path);
+            }
+            files.add(data);
+            size += data.byteSize();
+        }
+        if (rangeSize == 0) {
+            rangeSize = Math.max(MIN_RANGE_SIZE, size / workers.size() / 8);
+        }
+        List<Range> pending = new ArrayList<>();
+        for (int i = 0; i < paths.size(); i++) {
+            MemorySegment data = files.get(i);
+            List<Segment> segments = new ArrayList<>();
+            CalculateAverage_albertoventurini_adaptive.addSegments(segments, data, dialect.dataStart(data), data.byteSize(), rangeSize);
+            for (Segment segment : segments) {
+                pending.add(new Range(paths.get(i).toAbsolutePath(), segment.start(), segment.end()));
+            }
+        }
+
+        Map<String, long[]> result = new TreeMap<>();
+        List<String> live = workers;
+        String lastError = null;
+        while (!pending.isEmpty()) {
+            if (live.isEmpty()) {
+                throw new IllegalStateException("All workers failed, the last one with: " + lastError);
+            }
+            Queue<Range> queue = new ConcurrentLinkedQueue<>(pending);
+            List<Range> failedRanges = new ArrayList<>();
+            List<String> survivors = new ArrayList<>();
+            List<String> errors = new ArrayList<>();
+            Thread[] threads = new Thread[live.size()];
+            for (int i = 0; i < threads.length; i++) {
+                String worker = live.get(i);
+                int timeout = timeoutMillis;
+                threads[i] = Thread.ofPlatform().start(() -> {
+                    List<Range> taken = new ArrayList<>();
+                    try {
+                        Map<String, long[]> partial = job(worker, dialectOptions, timeout, queue, taken);
+                        synchronized (result) {
+                            merge(result, partial);
+                            survivors.add(worker);
+                        }
+                    }
+                    catch (IOException | WorkerException e) {
+                        String message = e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName();
+                        System.err.println("Worker " + worker + " failed, its " + taken.size() + " ranges are sent again: " + message);
+                        synchronized (result) {
+                            failedRanges.addAll(taken);
+                            errors.add(message);
+                        }
+                    }
+                });
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            // Left over if every worker failed
+            failedRanges.addAll(queue);
+            pending = failedRanges;
+            live = survivors;
+            lastError = errors.isEmpty() ? lastError : errors.getLast();
+        }
+
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, long[]> entry : result.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=');
+            CalculateAverage_albertoventurini_adaptive.appendStats(sb, dialect, entry.getValue(), false);
+        }
+        System.out.println(sb.append('}'));
+    }
+
+    // An error reported by a worker, e.g. a file it can't read
+    private static final class WorkerException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        WorkerException(String message) {
+            super(message);
+        }
+    }
+
+    // Sends ranges from the queue until it's empty, then returns the worker's stations. Every range
+    // taken from the queue is added to taken. A worker that doesn't answer in time fails with a
+    // SocketTimeoutException.
+    private static Map<String, long[]> job(String worker, List<String> dialectOptions, int timeoutMillis, Queue<Range> queue, List<Range> taken)
+            throws IOException, WorkerException {
+        int colon = worker.lastIndexOf(':');
+        String host = colon < 0 ? worker : worker.substring(0, colon);
+        int port = colon < 0 ? DEFAULT_PORT : Integer.parseInt(worker.substring(colon + 1));
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MILLIS);
+            socket.setSoTimeout(timeoutMillis);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            out.writeInt(dialectOptions.size());
+            for (String option : dialectOptions) {
+                out.writeUTF(option);
+            }
+
+            Range range;
+            while ((range = queue.poll()) != null) {
+                taken.add(range);
+                out.writeByte(RANGE);
+                out.writeUTF(range.path().toString());
+                out.writeLong(range.start());
+                out.writeLong(range.end());
+                out.flush();
+                byte status = in.readByte();
+                if (status == FAILED) {
+                    throw new WorkerException(in.readUTF());
+                }
+                if (status != DONE) {
+                    throw new IOException("Unexpected status " + status);
+                }
+            }
+            out.writeByte(FINISH);
+            out.flush();
+
+            byte status = in.readByte();
+            if (status == FAILED) {
+                throw new WorkerException(in.readUTF());
+            }
+            if (status != RESULT) {
+                throw new IOException("Unexpected status " + status);
+            }
+            Map<String, long[]> stations = new TreeMap<>();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                byte[] name = new byte[in.readInt()];
+                in.readFully(name);
+                long[] stats = CalculateAverage_albertoventurini_adaptive.newStats();
+                for (int j = 0; j < 4; j++) {
+                    stats[j] = in.readLong();
+                }
+                stations.put(new String(name, StandardCharsets.UTF_8), stats);
+            }
+            return stations;
+        }
+    }
+
+    private static void merge(Map<String, long[]> result, Map<String, long[]> partial) {
+        for (Map.Entry<String, long[]> entry : partial.entrySet()) {
+            long[] stats = result.computeIfAbsent(entry.getKey(), k -> CalculateAverage_albertoventurini_adaptive.newStats());
+            long[] other = entry.getValue();
+            stats[0] = Math.min(stats[0], other[0]);
+            stats[1] = Math.max(stats[1], other[1]);
+            stats[2] += other[2];
+            stats[3] += other[3];
+        }
+    }
+}
@@ -0,0 +1,258 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.foreign.MemorySegment;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A daemon answering CalculateAverage_albertoventurini_adaptive queries over a Unix domain socket, for
+ * callers like dashboards that run the same queries over the same files many times a minute. Each run then
+ * skips the JVM startup and the JIT warmup, and the last 1024 files read stay mapped as long as they don't
+ * change (same file key, size and modification time), so their pages don't fault in again. With
+ * --cache-results, the last 256 results are also kept by query and file identities, and a repeated query
+ * over unchanged files is answered from memory.
+ * <p>
+ * == Protocol ==
+ * A request is the engine's command line arguments, one per line in UTF-8, followed by an empty line.
+ * Relative paths would be resolved against the directory of the server, so
+ * {@link AggregationClient_albertoventurini_adaptive} makes them absolute. The response is "OK length\n"
+ * followed by that many bytes of output, or "ERROR message\n". There is one request per connection.
+ * Queries run one at a time, as each one uses all cores, but cached results are sent right away.
+ * <p>
+ * Usage: [--socket=PATH, /tmp/1brc-adaptive.sock by default] [--cache-results]
+ */
+public class AggregationServer_albertoventurini_adaptive {
+
+    static final Path DEFAULT_SOCKET = Path.of("/tmp/1brc-adaptive.sock");
+    private static final int MAX_CACHED_RESULTS = 256;
+    private static final int MAX_MAPPED_FILES = 1024;
+
+    // A file is considered unchanged while all of these are
+    private record FileIdentity(Object fileKey, long size, FileTime lastModified) {
+    }
+
+    private record MappedFile(FileIdentity identity, MemorySegment data) {
+    }
+
+    // Both least recently used first
+    private final Map<Path, MappedFile> mappings = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, byte[]> results = new LinkedHashMap<>(16, 0.75f, true);
+    private final boolean cacheResults;
+    private final ReentrantLock queryLock = new ReentrantLock();
+
+    AggregationServer_albertoventurini_adaptive(boolean cacheResults) {
+        this.cacheResults = cacheResults;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path socket = DEFAULT_SOCKET;
+        boolean cacheResults = false;
+        for (String arg : args) {
+            if (arg.startsWith("--socket=")) {
+                socket = Path.of(arg.substring("--socket=".length()));
+            }
+            else if (arg.equals("--cache-results")) {
+                cacheResults = true;
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        new AggregationServer_albertoventurini_adaptive(cacheResults).serve(socket);
+    }
+
+    void serve(Path socket) throws IOException {
+        if (Files.exists(socket)) {
+            // A leftover of a server that didn't shut down, unless one still answers
+            boolean answered;
+            try {
+                SocketChannel.open(UnixDomainSocketAddress.of(socket)).close();
+                answered = true;
+            }
+            catch (IOException e) {
+                answered = false;
+            }
+            if (answered) {
+                throw new IllegalStateException("A server is already listening on " + socket);
+            }
+            Files.delete(socket);
+        }
+        try (ServerSocketChannel server = ServerSocketChannel.open(StandardProtocolFamily.UNIX)) {
+            server.bind(UnixDomainSocketAddress.of(socket));
+            Path bound = socket;
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    Files.deleteIfExists(bound);
+                }
+                catch (IOException e) {
+                    // Nothing left to do
+                }
+            }));
+            System.err.println("Listening on " + socket);
+            while (true) {
+                SocketChannel client = server.accept();
+                Thread.ofVirtual().start(() -> handle(client));
+            }
+        }
+    }
+
+    private void handle(SocketChannel client) {
+        try (client) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(Channels.newInputStream(client), StandardCharsets.UTF_8));
+            List<String> args = new ArrayList<>();
+            String line;
+            while ((line = reader.readLine()) != null && !line.isEmpty()) {
+                args.add(line);
+            }
+            OutputStream out = Channels.newOutputStream(client);
+            byte[] result;
+            try {
+                result = query(args.toArray(new String[0]));
+            }
+            catch (Exception e) {
+                out.write(("ERROR " + describe(e) + "\n").getBytes(StandardCharsets.UTF_8));
+                return;
+            }
+            out.write(("OK " + result.length + "\n").getBytes(StandardCharsets.UTF_8));
+            out.write(result);
+        }
+        catch (IOException e) {
+            // The client went away
+        }
+    }
+
+    // The exception and its causes on one line, e.g. the corrupt block behind a failed worker
+    private static String describe(Throwable e) {
+        StringBuilder sb = new StringBuilder();
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t != e) {
+                sb.append("; caused by ");
+            }
+            sb.append(t.getClass().getSimpleName()).append(": ").append(t.getMessage());
+        }
+        return sb.toString().replace('\n', ' ');
+    }
+
+    /**
+     * Runs the query, or takes its result from the cache. A failed query throws, and nothing is cached.
+     */
+    byte[] query(String[] args) throws Exception {
+        String key = cacheResults ? cacheKey(args) : null;
+        if (key != null) {
+            byte[] cached = cachedResult(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        queryLock.lock();
+        try {
+            if (key != null) {
+                // Computed by the query this one was waiting for
+                byte[] cached = cachedResult(key);
+                if (cached != null) {
+                    return cached;
+                }
+            }
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            PrintStream out = new PrintStream(bytes, false, StandardCharsets.UTF_8);
+            CalculateAverage_albertoventurini_adaptive.run(args, out, this::map);
+            out.flush();
+            byte[] result = bytes.toByteArray();
+            if (key != null) {
+                synchronized (results) {
+                    results.put(key, result);
+                    if (results.size() > MAX_CACHED_RESULTS) {
+                        results.remove(results.keySet().iterator().next());
+                    }
+                }
+            }
+            return result;
+        }
+        finally {
+            queryLock.unlock();
+        }
+    }
+
+    private byte[] cachedResult(String key) {
+        synchronized (results) {
+            return results.get(key);
+        }
+    }
+
+    // The arguments and the identities of every file they read
+    private static String cacheKey(String[] args) throws IOException {
+        StringBuilder key = new StringBuilder();
+        List<String> inputs = new ArrayList<>();
+        for (String arg : args) {
+            key.append(arg).append('\0');
+            String file = CalculateAverage_albertoventurini_adaptive.optionFile(arg);
+            if (file != null) {
+                key.append(identity(Path.of(file))).append('\0');
+            }
+            else if (!arg.startsWith("--")) {
+                inputs.add(arg);
+            }
+        }
+        for (Path path : CalculateAverage_albertoventurini_adaptive.inputFiles(inputs.isEmpty() ? List.of(CalculateAverage_albertoventurini_adaptive.FILE) : inputs)) {
+            key.append(path.toAbsolutePath()).append('\0').append(identity(path)).append('\0');
+        }
+        return key.toString();
+    }
+
+    private static FileIdentity identity(Path path) throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileIdentity(attributes.fileKey(), attributes.size(), attributes.lastModifiedTime());
+    }
+
+    // A replaced or evicted mapping is unmapped once the queries still using it are done with it, so files
+    // that were deleted or are no longer queried age out of the map
+    private MemorySegment map(Path path) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        FileIdentity identity = identity(absolute);
+        synchronized (mappings) {
+            MappedFile mapped = mappings.get(absolute);
+            if (mapped == null || !mapped.identity().equals(identity)) {
+                mapped = new MappedFile(identity, CalculateAverage_albertoventurini_adaptive.mapFile(absolute));
+                mappings.put(absolute, mapped);
+                if (mappings.size() > MAX_MAPPED_FILES) {
+                    mappings.remove(mappings.keySet().iterator().next());
+                }
+            }
+            return mapped.data();
+        }
+    }
+}
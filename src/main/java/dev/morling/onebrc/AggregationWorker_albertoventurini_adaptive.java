@@ -0,0 +1,150 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.DelimiterScanner;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Dialect;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.RowParser;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.StationTable;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Stations;
+
+/**
+ * A worker of {@link AggregationCoordinator_albertoventurini_adaptive}: aggregates the file ranges it is
+ * sent with all its cores, and sends back the partial aggregates of the stations when the coordinator is
+ * done sending. Each connection is one job, and jobs of several coordinators can run at the same time.
+ * <p>
+ * There is no authentication, so the worker only listens on the loopback interface by default; with
+ * --bind=0.0.0.0 coordinators on other machines of a trusted network can reach it.
+ * <p>
+ * Usage: [--port=N, 7341 by default] [--bind=ADDRESS, 127.0.0.1 by default]
+ */
+public class AggregationWorker_albertoventurini_adaptive {
+
+    public static void main(String[] args) throws IOException {
+        int port = AggregationCoordinator_albertoventurini_adaptive.DEFAULT_PORT;
+        InetAddress bind = InetAddress.getLoopbackAddress();
+        for (String arg : args) {
+            if (arg.startsWith("--port=")) {
+                port = Integer.parseInt(arg.substring("--port=".length()));
+            }
+            else if (arg.startsWith("--bind=")) {
+                bind = InetAddress.getByName(arg.substring("--bind=".length()));
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+        try (ServerSocket server = new ServerSocket(port, 50, bind)) {
+            System.err.println("Listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                Thread.ofVirtual().start(() -> handle(socket));
+            }
+        }
+    }
+
+    private static void handle(Socket socket) {
+        try (socket) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            try {
+                Map<String, long[]> result = job(in, out);
+                out.writeByte(AggregationCoordinator_albertoventurini_adaptive.RESULT);
+                out.writeInt(result.size());
+                for (Map.Entry<String, long[]> entry : result.entrySet()) {
+                    byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                    out.writeInt(name.length);
+                    out.write(name);
+                    long[] stats = entry.getValue();
+                    for (int i = 0; i < 4; i++) {
+                        out.writeLong(stats[i]);
+                    }
+                }
+            }
+            catch (Exception e) {
+                // Including files that can't be read; if the connection is gone, writing fails too
+                Throwable cause = e.getCause() != null ? e.getCause() : e;
+                out.writeByte(AggregationCoordinator_albertoventurini_adaptive.FAILED);
+                out.writeUTF(cause.getClass().getSimpleName() + ": " + cause.getMessage());
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            System.err.println("Job of " + socket.getRemoteSocketAddress() + " aborted: " + e);
+        }
+    }
+
+    // Reads the dialect, then aggregates ranges until the coordinator says it's done
+    private static Map<String, long[]> job(DataInputStream in, DataOutputStream out) throws Exception {
+        Dialect dialect = Dialect.DEFAULT;
+        int options = in.readInt();
+        for (int i = 0; i < options; i++) {
+            String option = in.readUTF();
+            dialect = dialect.withOption(option);
+            if (dialect == null) {
+                throw new IllegalArgumentException("Unknown option: " + option);
+            }
+        }
+        RowParser<Stations> parser = dialect.rowParser();
+        DelimiterScanner scanner = null;
+        StationTable[] tables = new StationTable[Runtime.getRuntime().availableProcessors()];
+        for (int i = 0; i < tables.length; i++) {
+            tables[i] = new StationTable();
+        }
+
+        Map<String, MemorySegment> files = new HashMap<>();
+        while (in.readByte() == AggregationCoordinator_albertoventurini_adaptive.RANGE) {
+            String path = in.readUTF();
+            long start = in.readLong();
+            long end = in.readLong();
+            MemorySegment data = files.get(path);
+            if (data == null) {
+                data = CalculateAverage_albertoventurini_adaptive.mapFile(Path.of(path));
+                files.put(path, data);
+            }
+            if (start < 0 || start > end || end > data.byteSize()) {
+                throw new IllegalArgumentException("Range [" + start + ", " + end + ") out of " + path + " of " + data.byteSize() + " bytes");
+            }
+            if (scanner == null) {
+                scanner = CalculateAverage_albertoventurini_adaptive.calibrate(CalculateAverage_albertoventurini_adaptive.candidates(dialect.delimiter()), data,
+                        false);
+            }
+            CalculateAverage_albertoventurini_adaptive.aggregateRange(parser, scanner, data, start, end, tables);
+            out.writeByte(AggregationCoordinator_albertoventurini_adaptive.DONE);
+            out.flush();
+        }
+
+        Map<String, long[]> result = new HashMap<>();
+        for (StationTable table : tables) {
+            table.mergeInto(result);
+        }
+        return result;
+    }
+}
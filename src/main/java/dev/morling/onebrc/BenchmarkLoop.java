@@ -0,0 +1,76 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+/**
+ * The timing loop of the offline benchmarks (LoopCursorBenchmark_iziamos,
+ * StationTableBenchmark_albertoventurini_adaptive, TemperatureDecoderBenchmark_hundredwatt), which run
+ * without JMH: a pass over the benchmark's input is repeated for a warmup budget, so that it gets compiled,
+ * then for a measurement budget, and the average time per pass is reported.
+ * <p>
+ * Each pass returns a value that depends on all of its work. The values are summed into a blackhole that
+ * is used at the end, so that the JIT can't drop the work as dead code.
+ */
+final class BenchmarkLoop {
+    static final long WARMUP_NANOS = 2_000_000_000L;
+    static final long MEASURE_NANOS = 3_000_000_000L;
+
+    /**
+     * One pass over the benchmark's input.
+     */
+    interface Pass {
+        long run() throws Exception;
+    }
+
+    record Timing(long passes, long nanos) {
+        double nanosPerPass() {
+            return (double) nanos / passes;
+        }
+    }
+
+    private BenchmarkLoop() {
+    }
+
+    /**
+     * Warms the pass up, then measures it, with the default budgets.
+     */
+    static Timing measure(Pass pass) throws Exception {
+        return measure(pass, WARMUP_NANOS, MEASURE_NANOS);
+    }
+
+    static Timing measure(Pass pass, long warmupNanos, long measureNanos) throws Exception {
+        repeat(pass, warmupNanos);
+        return repeat(pass, measureNanos);
+    }
+
+    // Runs the pass at least once, and until the budget is spent
+    private static Timing repeat(Pass pass, long budgetNanos) throws Exception {
+        long blackhole = 0;
+        long passes = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            blackhole += pass.run();
+            passes++;
+            elapsed = System.nanoTime() - start;
+        } while (elapsed < budgetNanos);
+
+        if (blackhole == 42) {
+            System.out.print("");
+        }
+        return new Timing(passes, elapsed);
+    }
+}
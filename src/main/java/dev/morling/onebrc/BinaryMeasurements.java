@@ -0,0 +1,272 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeSet;
+import java.util.stream.IntStream;
+
+/**
+ * A dictionary-encoded binary form of measurements.txt, converted once by {@link #main} and then aggregated
+ * without any parsing by CalculateAverage_albertoventurini_binary.
+ * <p>
+ * The layout, little-endian:
+ *
+ * <pre>
+ * magic          "1BRCBIN1"
+ * station count  u32
+ * record size    u32, 4 or 6
+ * row count      u64
+ * dictionary     for each station in name order, u16 length and the UTF-8 name
+ * padding        to a multiple of 8 bytes
+ * records        station ID (u16 up to 65536 stations, u32 beyond), i16 temperature in tenths
+ * </pre>
+ *
+ * The station ID is the index in the dictionary, so walking the IDs gives the stations in the order of
+ * the result. Rows take 4 bytes instead of about 14 for the text.
+ * <p>
+ * The conversion parses the text twice, in parallel chunks: first to collect the names and count the
+ * rows of each chunk, then to write each chunk's records at their final place in the mapped output.
+ * <p>
+ * Usage: [input, ./measurements.txt by default] [output, ./measurements.bin by default]
+ */
+public final class BinaryMeasurements {
+    public static final int SMALL_RECORD_SIZE = 4;
+    public static final int LARGE_RECORD_SIZE = 6;
+
+    private static final long MAGIC = 0x314e494243524231L; // "1BRCBIN1"
+    private static final int FIXED_HEADER_SIZE = 8 + 4 + 4 + 8;
+    private static final long CHUNK_SIZE = 16 * 1024 * 1024;
+
+    static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * The header of a file, with the records in [dataOffset, dataOffset + rows * recordSize).
+     */
+    public record Header(String[] names, int recordSize, long rows, long dataOffset) {
+    }
+
+    private BinaryMeasurements() {
+    }
+
+    public static boolean isBinary(MemorySegment file) {
+        return file.byteSize() >= FIXED_HEADER_SIZE && file.get(LONG_LE, 0) == MAGIC;
+    }
+
+    public static Header header(MemorySegment file) {
+        if (!isBinary(file)) {
+            throw new IllegalArgumentException("Not a binary measurements file");
+        }
+        int stations = file.get(INT_LE, 8);
+        int recordSize = file.get(INT_LE, 12);
+        long rows = file.get(LONG_LE, 16);
+        if (stations < 0 || (recordSize != SMALL_RECORD_SIZE && recordSize != LARGE_RECORD_SIZE) || rows < 0) {
+            throw new IllegalArgumentException("Corrupt header");
+        }
+        String[] names = new String[stations];
+        long offset = FIXED_HEADER_SIZE;
+        for (int i = 0; i < stations; i++) {
+            if (offset + 2 > file.byteSize()) {
+                throw new IllegalArgumentException("Truncated dictionary");
+            }
+            int length = Short.toUnsignedInt(file.get(SHORT_LE, offset));
+            if (offset + 2 + length > file.byteSize()) {
+                throw new IllegalArgumentException("Truncated dictionary");
+            }
+            names[i] = new String(file.asSlice(offset + 2, length).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+            offset += 2 + length;
+        }
+        long dataOffset = align(offset);
+        if (file.byteSize() != dataOffset + rows * recordSize) {
+            throw new IllegalArgumentException("Expected " + rows + " records of " + recordSize + " bytes, file has " + file.byteSize() + " bytes");
+        }
+        return new Header(names, recordSize, rows, dataOffset);
+    }
+
+    public static int stationId(MemorySegment file, long recordOffset, int recordSize) {
+        return recordSize == SMALL_RECORD_SIZE ? Short.toUnsignedInt(file.get(SHORT_LE, recordOffset)) : file.get(INT_LE, recordOffset);
+    }
+
+    public static int reading(MemorySegment file, long recordOffset, int recordSize) {
+        return file.get(SHORT_LE, recordOffset + recordSize - 2);
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path input = Path.of(args.length > 0 ? args[0] : "./measurements.txt");
+        Path output = Path.of(args.length > 1 ? args[1] : "./measurements.bin");
+        long start = System.currentTimeMillis();
+        long rows = convert(input, output);
+        System.out.printf("Converted %,d rows to %s in %d ms%n", rows, output, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Writes the rows of a text file, station;temperature with one fraction digit, in the binary form.
+     *
+     * @return the number of rows
+     */
+    public static long convert(Path input, Path output) throws IOException {
+        try (Arena arena = Arena.ofShared();
+                FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+            MemorySegment text = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size(), arena);
+            List<long[]> chunks = chunks(text);
+
+            // First pass: the names and the rows of each chunk
+            ByteKeyHashMap[] chunkNames = new ByteKeyHashMap[chunks.size()];
+            long[] chunkRows = new long[chunks.size()];
+            IntStream.range(0, chunks.size()).parallel().forEach(i -> {
+                chunkNames[i] = new ByteKeyHashMap();
+                chunkRows[i] = convertChunk(text, chunks.get(i)[0], chunks.get(i)[1], chunkNames[i], null, 0, 0);
+            });
+
+            TreeSet<String> sorted = new TreeSet<>();
+            for (ByteKeyHashMap names : chunkNames) {
+                for (int i = 0; i < names.size(); i++) {
+                    sorted.add(names.keyString(i));
+                }
+            }
+            ByteKeyHashMap ids = new ByteKeyHashMap(sorted.size());
+            long dictionarySize = 0;
+            for (String name : sorted) {
+                byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+                ids.put(bytes, 0, bytes.length, ByteKeyHashMap.hash(bytes, 0, bytes.length));
+                dictionarySize += 2 + bytes.length;
+            }
+            int recordSize = ids.size() <= 1 << 16 ? SMALL_RECORD_SIZE : LARGE_RECORD_SIZE;
+            long[] chunkOffsets = new long[chunks.size()];
+            long dataOffset = align(FIXED_HEADER_SIZE + dictionarySize);
+            long rows = 0;
+            for (int i = 0; i < chunks.size(); i++) {
+                chunkOffsets[i] = dataOffset + rows * recordSize;
+                rows += chunkRows[i];
+            }
+
+            MemorySegment binary = out.map(FileChannel.MapMode.READ_WRITE, 0, dataOffset + rows * recordSize, arena);
+            binary.set(LONG_LE, 0, MAGIC);
+            binary.set(INT_LE, 8, ids.size());
+            binary.set(INT_LE, 12, recordSize);
+            binary.set(LONG_LE, 16, rows);
+            long offset = FIXED_HEADER_SIZE;
+            for (int i = 0; i < ids.size(); i++) {
+                byte[] name = ids.key(i);
+                binary.set(SHORT_LE, offset, (short) name.length);
+                MemorySegment.copy(name, 0, binary, ValueLayout.JAVA_BYTE, offset + 2, name.length);
+                offset += 2 + name.length;
+            }
+
+            // Second pass: the records
+            IntStream.range(0, chunks.size()).parallel().forEach(i -> {
+                convertChunk(text, chunks.get(i)[0], chunks.get(i)[1], ids, binary, chunkOffsets[i], recordSize);
+            });
+            return rows;
+        }
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+
+    // Line-aligned [start, end) ranges of about CHUNK_SIZE bytes
+    private static List<long[]> chunks(MemorySegment text) {
+        List<long[]> chunks = new ArrayList<>();
+        long size = text.byteSize();
+        long start = 0;
+        while (start < size) {
+            long end = Math.min(size, start + CHUNK_SIZE);
+            while (end < size && text.get(ValueLayout.JAVA_BYTE, end - 1) != '\n') {
+                end++;
+            }
+            chunks.add(new long[]{ start, end });
+            start = end;
+        }
+        return chunks;
+    }
+
+    /**
+     * Without an output, adds the names of the rows in [start, end) to names. With one, writes their
+     * records from outOffset on, looking up the IDs in names. Returns the number of rows.
+     */
+    private static long convertChunk(MemorySegment text, long start, long end, ByteKeyHashMap names, MemorySegment out, long outOffset,
+                                     int recordSize) {
+        long rows = 0;
+        long pos = start;
+        while (pos < end) {
+            long nameStart = pos;
+            while (text.get(ValueLayout.JAVA_BYTE, pos) != ';') {
+                pos++;
+            }
+            int nameLength = (int) (pos - nameStart);
+            if (nameLength > 0xFFFF) {
+                throw new IllegalArgumentException("Station name of " + nameLength + " bytes at offset " + nameStart);
+            }
+            int hash = ByteKeyHashMap.hash(text, nameStart, nameLength);
+            pos++;
+
+            boolean negative = text.get(ValueLayout.JAVA_BYTE, pos) == '-';
+            if (negative) {
+                pos++;
+            }
+            int value = 0;
+            while (pos < end) {
+                byte b = text.get(ValueLayout.JAVA_BYTE, pos++);
+                if (b == '\n') {
+                    break;
+                }
+                if (b != '.' && b != '\r') {
+                    value = value * 10 + (b - '0');
+                }
+            }
+            if (value > Short.MAX_VALUE) {
+                throw new IllegalArgumentException("Temperature out of range in the row at offset " + nameStart);
+            }
+
+            if (out == null) {
+                names.put(text, nameStart, nameLength, hash);
+            }
+            else {
+                int id = names.get(text, nameStart, nameLength, hash);
+                if (id < 0) {
+                    // Two byte strings that decode to the same name
+                    throw new IllegalArgumentException("Station name at offset " + nameStart + " isn't valid UTF-8");
+                }
+                long offset = outOffset + rows * recordSize;
+                if (recordSize == SMALL_RECORD_SIZE) {
+                    out.set(SHORT_LE, offset, (short) id);
+                    out.set(SHORT_LE, offset + 2, (short) (negative ? -value : value));
+                }
+                else {
+                    out.set(INT_LE, offset, id);
+                    out.set(SHORT_LE, offset + 4, (short) (negative ? -value : value));
+                }
+            }
+            rows++;
+        }
+        return rows;
+    }
+}
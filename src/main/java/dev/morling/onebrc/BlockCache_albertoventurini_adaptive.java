@@ -0,0 +1,267 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32C;
+
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.DelimiterScanner;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Dialect;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.RowParser;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Segment;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Stations;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.StationTable;
+
+/**
+ * The partial aggregates of the blocks of the input files, kept in a directory across runs of
+ * CalculateAverage_albertoventurini_adaptive --block-cache=DIR, so that a rerun over unchanged or appended
+ * files only parses the blocks that are new or changed.
+ * <p>
+ * A file is cut into line-aligned blocks of about --cache-block-size MB from its first row on, so rows
+ * appended to it only move the end of its last block. For each file, the cache keeps the file's identity
+ * (file key, i.e. device and inode, size and modification time) and, for each block, its range, CRC32C and
+ * the min/max/sum/count of its stations. While the identity is unchanged, the blocks are all taken from the
+ * cache without reading the file. Otherwise, each block with the same range as a cached one is checksummed,
+ * which runs at memory speed (CRC32C is an intrinsic), and its partial reused if the checksum matches; the
+ * other blocks are parsed, each into its own table, and the file's cache is rewritten.
+ * <p>
+ * The cache of a file is only used with the dialect it was written with. A file rewritten in place with the
+ * same size and modification time isn't noticed.
+ */
+public final class BlockCache_albertoventurini_adaptive {
+    private static final String MAGIC = "1BRCBLK1";
+
+    private record Identity(String fileKey, long size, long lastModified) {
+    }
+
+    // The stations of the rows in [start, end): min, max, sum and count as in newStats()
+    private record CachedBlock(long start, long end, int checksum, Map<String, long[]> stations) {
+    }
+
+    private record CachedFile(Identity identity, List<CachedBlock> blocks) {
+    }
+
+    // A block of a file to checksum and, unless it matches the cached one (if any), to parse
+    private record Task(int file, int index, Segment segment, CachedBlock cached) {
+    }
+
+    private final Path directory;
+    private final long blockSize;
+    private final boolean verbose;
+
+    BlockCache_albertoventurini_adaptive(Path directory, long blockSize, boolean verbose) {
+        this.directory = directory;
+        this.blockSize = blockSize;
+        this.verbose = verbose;
+    }
+
+    /**
+     * Aggregates the files with the given number of threads, parsing only the blocks that aren't cached, and
+     * updates the cache of the files that changed. Returns the stations by name.
+     */
+    Map<String, long[]> aggregate(List<Path> paths, List<MemorySegment> files, Dialect dialect, RowParser<Stations> parser, DelimiterScanner scanner,
+                                  int threads)
+            throws IOException, InterruptedException {
+        String dialectKey = dialect.toString();
+        CachedBlock[][] blocks = new CachedBlock[files.size()][];
+        Identity[] identities = new Identity[files.size()];
+        boolean[] changed = new boolean[files.size()];
+        List<Task> tasks = new ArrayList<>();
+        for (int f = 0; f < files.size(); f++) {
+            Path path = paths.get(f).toAbsolutePath();
+            MemorySegment data = files.get(f);
+            // The size of the mapping, in case the file grew since
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            identities[f] = new Identity(String.valueOf(attributes.fileKey()), data.byteSize(), attributes.lastModifiedTime().to(TimeUnit.NANOSECONDS));
+            CachedFile cached = load(path, dialectKey);
+            Map<Long, CachedBlock> cachedByStart = new HashMap<>();
+            if (cached != null) {
+                for (CachedBlock block : cached.blocks()) {
+                    cachedByStart.put(block.start(), block);
+                }
+            }
+            boolean unchanged = cached != null && cached.identity().equals(identities[f]);
+
+            List<Segment> segments = new ArrayList<>();
+            CalculateAverage_albertoventurini_adaptive.addSegments(segments, data, dialect.dataStart(data), data.byteSize(), blockSize);
+            blocks[f] = new CachedBlock[segments.size()];
+            for (int i = 0; i < segments.size(); i++) {
+                Segment segment = segments.get(i);
+                CachedBlock block = cachedByStart.get(segment.start());
+                if (block != null && block.end() != segment.end()) {
+                    block = null;
+                }
+                if (unchanged && block != null) {
+                    blocks[f][i] = block;
+                }
+                else {
+                    tasks.add(new Task(f, i, segment, block));
+                    changed[f] = true;
+                }
+            }
+        }
+
+        AtomicInteger nextTask = new AtomicInteger();
+        AtomicInteger verified = new AtomicInteger();
+        Runnable[] work = new Runnable[threads];
+        for (int i = 0; i < threads; i++) {
+            work[i] = () -> {
+                int next;
+                while ((next = nextTask.getAndIncrement()) < tasks.size()) {
+                    Task task = tasks.get(next);
+                    Segment segment = task.segment();
+                    CRC32C crc = new CRC32C();
+                    crc.update(segment.data().asSlice(segment.start(), segment.end() - segment.start()).asByteBuffer());
+                    int checksum = (int) crc.getValue();
+                    if (task.cached() != null && task.cached().checksum() == checksum) {
+                        blocks[task.file()][task.index()] = task.cached();
+                        verified.incrementAndGet();
+                        continue;
+                    }
+                    StationTable table = new StationTable();
+                    long tailStart = CalculateAverage_albertoventurini_adaptive.processMapped(parser, scanner, segment, table);
+                    if (tailStart < segment.end()) {
+                        CalculateAverage_albertoventurini_adaptive.processTail(parser, scanner, new Segment(segment.data(), tailStart, segment.end()), table);
+                    }
+                    Map<String, long[]> stations = new HashMap<>();
+                    table.mergeInto(stations);
+                    blocks[task.file()][task.index()] = new CachedBlock(segment.start(), segment.end(), checksum, stations);
+                }
+            };
+        }
+        CalculateAverage_albertoventurini_adaptive.runWorkers(work);
+
+        int blockCount = 0;
+        for (int f = 0; f < files.size(); f++) {
+            blockCount += blocks[f].length;
+            if (changed[f]) {
+                store(paths.get(f).toAbsolutePath(), dialectKey, identities[f], blocks[f]);
+            }
+        }
+        if (verbose) {
+            int parsed = tasks.size() - verified.get();
+            System.err.printf("Block cache: %d of %d blocks reused (%d checksummed), %d parsed%n", blockCount - parsed, blockCount, verified.get(), parsed);
+        }
+
+        Map<String, long[]> result = new TreeMap<>();
+        for (CachedBlock[] fileBlocks : blocks) {
+            for (CachedBlock block : fileBlocks) {
+                for (Map.Entry<String, long[]> entry : block.stations().entrySet()) {
+                    long[] stats = entry.getValue();
+                    CalculateAverage_albertoventurini_adaptive.addStats(
+                            result.computeIfAbsent(entry.getKey(), k -> CalculateAverage_albertoventurini_adaptive.newStats()),
+                            (int) stats[0], (int) stats[1], stats[2], (int) stats[3], 0, 0);
+                }
+            }
+        }
+        return result;
+    }
+
+    private Path cacheFile(Path path) {
+        return directory.resolve(UUID.nameUUIDFromBytes(path.toString().getBytes(StandardCharsets.UTF_8)) + ".blocks");
+    }
+
+    // The cached blocks of the file, or null if there are none for this dialect
+    private CachedFile load(Path path, String dialectKey) {
+        Path file = cacheFile(path);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), 1 << 16))) {
+            if (!in.readUTF().equals(MAGIC) || !in.readUTF().equals(path.toString()) || !in.readUTF().equals(dialectKey)) {
+                return null;
+            }
+            Identity identity = new Identity(in.readUTF(), in.readLong(), in.readLong());
+            int blockCount = in.readInt();
+            List<CachedBlock> blocks = new ArrayList<>(blockCount);
+            for (int i = 0; i < blockCount; i++) {
+                long start = in.readLong();
+                long end = in.readLong();
+                int checksum = in.readInt();
+                int stationCount = in.readInt();
+                Map<String, long[]> stations = HashMap.newHashMap(stationCount);
+                for (int j = 0; j < stationCount; j++) {
+                    byte[] name = new byte[in.readInt()];
+                    in.readFully(name);
+                    long[] stats = CalculateAverage_albertoventurini_adaptive.newStats();
+                    CalculateAverage_albertoventurini_adaptive.addStats(stats, in.readInt(), in.readInt(), in.readLong(), in.readInt(), 0, 0);
+                    stations.put(new String(name, StandardCharsets.UTF_8), stats);
+                }
+                blocks.add(new CachedBlock(start, end, checksum, stations));
+            }
+            return new CachedFile(identity, blocks);
+        }
+        catch (IOException e) {
+            System.err.println("Ignoring the unreadable block cache " + file + ": " + e);
+            return null;
+        }
+    }
+
+    // Written next to its final name and moved there, so that a concurrent run reads the old or the new one
+    private void store(Path path, String dialectKey, Identity identity, CachedBlock[] blocks) throws IOException {
+        Files.createDirectories(directory);
+        Path temp = Files.createTempFile(directory, "blocks", ".tmp");
+        try {
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temp), 1 << 16))) {
+                out.writeUTF(MAGIC);
+                out.writeUTF(path.toString());
+                out.writeUTF(dialectKey);
+                out.writeUTF(identity.fileKey());
+                out.writeLong(identity.size());
+                out.writeLong(identity.lastModified());
+                out.writeInt(blocks.length);
+                for (CachedBlock block : blocks) {
+                    out.writeLong(block.start());
+                    out.writeLong(block.end());
+                    out.writeInt(block.checksum());
+                    out.writeInt(block.stations().size());
+                    for (Map.Entry<String, long[]> entry : block.stations().entrySet()) {
+                        byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                        out.writeInt(name.length);
+                        out.write(name);
+                        long[] stats = entry.getValue();
+                        out.writeInt((int) stats[0]);
+                        out.writeInt((int) stats[1]);
+                        out.writeLong(stats[2]);
+                        out.writeInt((int) stats[3]);
+                    }
+                }
+            }
+            Files.move(temp, cacheFile(path), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+        finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Block-compressed measurement files, in the spirit of BGZF: the rows are cut at line ends into blocks of
+ * up to a given size, and each block is written as an independent gzip member, so the file still reads
+ * with gunzip or zcat.
+ * <p>
+ * Each member has an extra field (subfield "1B") with its own size and the size of its rows, so the index
+ * of all blocks is built by hopping from header to header without inflating anything, and the blocks can
+ * then be inflated in parallel, e.g. with {@link java.util.zip.Inflater} in nowrap mode on
+ * [{@link Block#dataOffset()}, + {@link Block#dataSize()}). Nowrap mode doesn't read the trailer, so the
+ * inflated rows have to be checked against {@link #crc32} by the caller.
+ */
+public final class BlockGzip {
+    // Magic, CM, FLG, MTIME, XFL, OS, XLEN, then the subfield: SI1, SI2, LEN, member size, rows size
+    private static final int HEADER_SIZE = 10 + 2 + 4 + 8;
+    // CRC32, ISIZE
+    private static final int TRAILER_SIZE = 8;
+    private static final byte FEXTRA = 4;
+
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * A gzip member holding inflatedSize bytes of whole rows.
+     */
+    public record Block(long offset, int compressedSize, int inflatedSize) {
+        // The raw deflate data
+        public long dataOffset() {
+            return offset + HEADER_SIZE;
+        }
+
+        public int dataSize() {
+            return compressedSize - HEADER_SIZE - TRAILER_SIZE;
+        }
+    }
+
+    private BlockGzip() {
+    }
+
+    /**
+     * Whether the file starts with a member written by {@link #write}.
+     */
+    public static boolean isBlockGzip(MemorySegment file) {
+        return file.byteSize() >= HEADER_SIZE && isHeader(file, 0);
+    }
+
+    private static boolean isHeader(MemorySegment file, long offset) {
+        return file.get(ValueLayout.JAVA_BYTE, offset) == (byte) 0x1f
+                && file.get(ValueLayout.JAVA_BYTE, offset + 1) == (byte) 0x8b
+                && file.get(ValueLayout.JAVA_BYTE, offset + 2) == Deflater.DEFLATED
+                && file.get(ValueLayout.JAVA_BYTE, offset + 3) == FEXTRA
+                && file.get(SHORT_LE, offset + 10) == 12
+                && file.get(ValueLayout.JAVA_BYTE, offset + 12) == '1'
+                && file.get(ValueLayout.JAVA_BYTE, offset + 13) == 'B'
+                && file.get(SHORT_LE, offset + 14) == 8;
+    }
+
+    /**
+     * Returns the blocks of the file, reading only their headers.
+     */
+    public static List<Block> index(MemorySegment file) {
+        List<Block> blocks = new ArrayList<>();
+        long size = file.byteSize();
+        long offset = 0;
+        while (offset < size) {
+            if (size - offset < HEADER_SIZE + TRAILER_SIZE || !isHeader(file, offset)) {
+                throw new IllegalArgumentException("No block gzip member at offset " + offset);
+            }
+            Block block = new Block(offset, file.get(INT_LE, offset + 16), file.get(INT_LE, offset + 20));
+            if (block.compressedSize() < HEADER_SIZE + TRAILER_SIZE || offset + block.compressedSize() > size) {
+                throw new IllegalArgumentException("Truncated block gzip member at offset " + offset);
+            }
+            blocks.add(block);
+            offset += block.compressedSize();
+        }
+        return blocks;
+    }
+
+    /**
+     * Returns the CRC32 of the rows of the block, from the trailer of its member.
+     */
+    public static int crc32(MemorySegment file, Block block) {
+        return file.get(INT_LE, block.offset() + block.compressedSize() - TRAILER_SIZE);
+    }
+
+    /**
+     * Writes the rows in [0, length) as members of up to blockSize bytes of rows each, cut after a '\n'.
+     */
+    public static void write(OutputStream out, byte[] rows, int length, int blockSize) throws IOException {
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        try {
+            int start = 0;
+            while (start < length) {
+                int end = Math.min(length, start + blockSize);
+                if (end < length) {
+                    while (end > start && rows[end - 1] != '\n') {
+                        end--;
+                    }
+                    if (end == start) {
+                        throw new IllegalArgumentException("Row longer than the block size at offset " + start);
+                    }
+                }
+                out.write(member(rows, start, end - start, deflater));
+                start = end;
+            }
+        }
+        finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] member(byte[] data, int offset, int length, Deflater deflater) {
+        deflater.reset();
+        deflater.setInput(data, offset, length);
+        deflater.finish();
+        byte[] member = new byte[HEADER_SIZE + length / 2 + 64];
+        int size = HEADER_SIZE;
+        while (!deflater.finished()) {
+            if (size == member.length) {
+                member = Arrays.copyOf(member, member.length * 2);
+            }
+            size += deflater.deflate(member, size, member.length - size);
+        }
+        member = Arrays.copyOf(member, size + TRAILER_SIZE);
+        size += TRAILER_SIZE;
+
+        MemorySegment segment = MemorySegment.ofArray(member);
+        segment.set(ValueLayout.JAVA_BYTE, 0, (byte) 0x1f);
+        segment.set(ValueLayout.JAVA_BYTE, 1, (byte) 0x8b);
+        segment.set(ValueLayout.JAVA_BYTE, 2, (byte) Deflater.DEFLATED);
+        segment.set(ValueLayout.JAVA_BYTE, 3, FEXTRA);
+        // MTIME and XFL are 0
+        segment.set(ValueLayout.JAVA_BYTE, 9, (byte) 255);
+        segment.set(SHORT_LE, 10, (short) 12);
+        segment.set(ValueLayout.JAVA_BYTE, 12, (byte) '1');
+        segment.set(ValueLayout.JAVA_BYTE, 13, (byte) 'B');
+        segment.set(SHORT_LE, 14, (short) 8);
+        segment.set(INT_LE, 16, size);
+        segment.set(INT_LE, 20, length);
+
+        CRC32 crc = new CRC32();
+        crc.update(data, offset, length);
+        segment.set(INT_LE, size - 8, (int) crc.getValue());
+        segment.set(INT_LE, size - 4, length);
+        return member;
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A resizable open addressing map from byte string keys to dense entry indexes, meant to replace the
+ * fixed-capacity maps of the individual solutions (CalculateAverage_spullara.ByteArrayToResultMap,
+ * CalculateAverage_obourgain.OpenAddressingMap, CalculateAverage_raipc.MyHashMap,
+ * CalculateAverage_hundredwatt.HashTable...).
+ * <p>
+ * Keys are given as (byte[], offset, length) or as (MemorySegment, offset, length), the latter covering
+ * mapped files and native memory, along with a hash computed by the caller (or with {@link #hash}).
+ * Each distinct key gets an index, 0 for the first one, 1 for the second and so on. Values are kept by
+ * the caller in its own primitive arrays indexed by it, so there are no per-entry objects:
+ *
+ * <pre>
+ * int index = map.put(data, offset, length, hash);
+ * if (index == counts.length) {
+ *     counts = Arrays.copyOf(counts, counts.length * 2);
+ * }
+ * counts[index]++;
+ * </pre>
+ *
+ * == Layout ==
+ * The table is a long[] with, for each slot, the mixed hash in the upper 32 bits and the entry index + 1
+ * in the lower 32 bits (0 for an empty slot), so probing doesn't touch the entries. The key bytes are
+ * appended to a single byte[], and the key offsets, lengths and hashes are in int[]s indexed by entry.
+ * == Probing ==
+ * Linear probing with Robin Hood insertion: an entry further from its home slot takes the place of one
+ * closer to its own, which keeps probe sequences short and lets lookups of missing keys stop as soon as
+ * they meet an entry closer to home than themselves. The table doubles at 7/8 load.
+ * <p>
+ * Not thread-safe. Entries can't be removed, other than all at once with {@link #clear()}.
+ */
+public final class ByteKeyHashMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] table;
+    private int mask;
+    private int resizeThreshold;
+
+    private int size;
+    private int[] keyOffsets;
+    private int[] keyLengths;
+    private int[] hashes;
+    private byte[] keys;
+    private MemorySegment keysSegment;
+    private int keysSize;
+
+    public ByteKeyHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize number of keys that fit without resizing
+     */
+    public ByteKeyHashMap(int expectedSize) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize + expectedSize / 7)) << 1);
+        allocateTable(capacity);
+        keyOffsets = new int[Math.max(MIN_CAPACITY, expectedSize)];
+        keyLengths = new int[keyOffsets.length];
+        hashes = new int[keyOffsets.length];
+        keys = new byte[keyOffsets.length * 16];
+        keysSegment = MemorySegment.ofArray(keys);
+    }
+
+    /**
+     * A general purpose hash, for callers that don't have one at hand.
+     */
+    public static int hash(byte[] key, int offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + key[offset + i];
+        }
+        return hash;
+    }
+
+    /**
+     * Same as {@link #hash(byte[], int, int)}.
+     */
+    public static int hash(MemorySegment key, long offset, int length) {
+        int hash = 0;
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + key.get(ValueLayout.JAVA_BYTE, offset + i);
+        }
+        return hash;
+    }
+
+    /**
+     * Returns the index of the key, adding it if it isn't there yet.
+     */
+    public int put(byte[] key, int offset, int length, int hash) {
+        int mixed = mix(hash);
+        int slot = mixed & mask;
+        for (int distance = 0;; distance++) {
+            long e = table[slot];
+            if (e == 0 || distance(e, slot) < distance) {
+                return insert(key, offset, length, mixed, slot, distance);
+            }
+            if ((int) (e >>> 32) == mixed) {
+                int index = (int) e - 1;
+                if (keyLengths[index] == length && Arrays.equals(keys, keyOffsets[index], keyOffsets[index] + length, key, offset, offset + length)) {
+                    return index;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the index of the key, adding it if it isn't there yet.
+     */
+    public int put(MemorySegment key, long offset, int length, int hash) {
+        int mixed = mix(hash);
+        int slot = mixed & mask;
+        for (int distance = 0;; distance++) {
+            long e = table[slot];
+            if (e == 0 || distance(e, slot) < distance) {
+                return insert(key, offset, length, mixed, slot, distance);
+            }
+            if ((int) (e >>> 32) == mixed) {
+                int index = (int) e - 1;
+                int keyOffset = keyOffsets[index];
+                if (keyLengths[index] == length && MemorySegment.mismatch(keysSegment, keyOffset, keyOffset + length, key, offset, offset + length) == -1) {
+                    return index;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the index of the key, or -1 if it isn't in the map.
+     */
+    public int get(byte[] key, int offset, int length, int hash) {
+        int mixed = mix(hash);
+        int slot = mixed & mask;
+        for (int distance = 0;; distance++) {
+            long e = table[slot];
+            if (e == 0 || distance(e, slot) < distance) {
+                return -1;
+            }
+            if ((int) (e >>> 32) == mixed) {
+                int index = (int) e - 1;
+                if (keyLengths[index] == length && Arrays.equals(keys, keyOffsets[index], keyOffsets[index] + length, key, offset, offset + length)) {
+                    return index;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Returns the index of the key, or -1 if it isn't in the map.
+     */
+    public int get(MemorySegment key, long offset, int length, int hash) {
+        int mixed = mix(hash);
+        int slot = mixed & mask;
+        for (int distance = 0;; distance++) {
+            long e = table[slot];
+            if (e == 0 || distance(e, slot) < distance) {
+                return -1;
+            }
+            if ((int) (e >>> 32) == mixed) {
+                int index = (int) e - 1;
+                int keyOffset = keyOffsets[index];
+                if (keyLengths[index] == length && MemorySegment.mismatch(keysSegment, keyOffset, keyOffset + length, key, offset, offset + length) == -1) {
+                    return index;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /**
+     * Number of keys, also the index the next new key will get.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int keyLength(int index) {
+        checkIndex(index);
+        return keyLengths[index];
+    }
+
+    /**
+     * Returns a copy of the key of an entry.
+     */
+    public byte[] key(int index) {
+        checkIndex(index);
+        return Arrays.copyOfRange(keys, keyOffsets[index], keyOffsets[index] + keyLengths[index]);
+    }
+
+    /**
+     * Returns the key of an entry decoded as UTF-8.
+     */
+    public String keyString(int index) {
+        checkIndex(index);
+        return new String(keys, keyOffsets[index], keyLengths[index], StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the hash of the key of an entry as mixed by the map, not the one it was added with: the one
+     * its slot is taken from. It is the same for equal keys and spread over all 32 bits, even if the hashes
+     * given to put aren't, so callers can also partition entries by it.
+     */
+    public int keyHash(int index) {
+        checkIndex(index);
+        return hashes[index];
+    }
+
+    /**
+     * Removes all keys, keeping the allocated memory.
+     */
+    public void clear() {
+        Arrays.fill(table, 0);
+        size = 0;
+        keysSize = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+    }
+
+    private int insert(byte[] key, int offset, int length, int mixed, int slot, int distance) {
+        int index = newEntry(length, mixed);
+        System.arraycopy(key, offset, keys, keyOffsets[index], length);
+        place(index, mixed, slot, distance);
+        return index;
+    }
+
+    private int insert(MemorySegment key, long offset, int length, int mixed, int slot, int distance) {
+        int index = newEntry(length, mixed);
+        MemorySegment.copy(key, offset, keysSegment, keyOffsets[index], length);
+        place(index, mixed, slot, distance);
+        return index;
+    }
+
+    // Reserves the entry and the room for its key
+    private int newEntry(int length, int mixed) {
+        if (size == keyOffsets.length) {
+            int capacity = keyOffsets.length * 2;
+            keyOffsets = Arrays.copyOf(keyOffsets, capacity);
+            keyLengths = Arrays.copyOf(keyLengths, capacity);
+            hashes = Arrays.copyOf(hashes, capacity);
+        }
+        if (keysSize + length > keys.length) {
+            keys = Arrays.copyOf(keys, Math.max(keys.length * 2, keysSize + length));
+            keysSegment = MemorySegment.ofArray(keys);
+        }
+        int index = size++;
+        keyOffsets[index] = keysSize;
+        keyLengths[index] = length;
+        hashes[index] = mixed;
+        keysSize += length;
+        return index;
+    }
+
+    // Robin Hood insertion, starting at the slot where the lookup stopped
+    private void place(int index, int mixed, int slot, int distance) {
+        if (size > resizeThreshold) {
+            // The slot found by the lookup is meaningless in the new table
+            resize();
+            return;
+        }
+        long carried = ((long) mixed << 32) | (index + 1);
+        while (true) {
+            long e = table[slot];
+            if (e == 0) {
+                table[slot] = carried;
+                return;
+            }
+            int existingDistance = distance(e, slot);
+            if (existingDistance < distance) {
+                table[slot] = carried;
+                carried = e;
+                distance = existingDistance;
+            }
+            slot = (slot + 1) & mask;
+            distance++;
+        }
+    }
+
+    private void resize() {
+        allocateTable(table.length * 2);
+        for (int index = 0; index < size; index++) {
+            int mixed = hashes[index];
+            long carried = ((long) mixed << 32) | (index + 1);
+            int slot = mixed & mask;
+            int distance = 0;
+            while (true) {
+                long e = table[slot];
+                if (e == 0) {
+                    table[slot] = carried;
+                    break;
+                }
+                int existingDistance = distance(e, slot);
+                if (existingDistance < distance) {
+                    table[slot] = carried;
+                    carried = e;
+                    distance = existingDistance;
+                }
+                slot = (slot + 1) & mask;
+                distance++;
+            }
+        }
+    }
+
+    private void allocateTable(int capacity) {
+        table = new long[capacity];
+        mask = capacity - 1;
+        resizeThreshold = capacity - capacity / 8;
+    }
+
+    // How far the entry in the slot is from its home slot
+    private int distance(long e, int slot) {
+        return (slot - (int) (e >>> 32)) & mask;
+    }
+
+    // Spreads the caller's hash, which may only vary in the high or low bits (e.g. 31 * h + b)
+    private static int mix(int hash) {
+        int h = hash * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
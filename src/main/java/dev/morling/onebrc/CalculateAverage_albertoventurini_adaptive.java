@@ -0,0 +1,2061 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorSpecies;
+
+import dev.morling.onebrc.BlockGzip.Block;
+
+/**
+ * An engine that picks its delimiter search at runtime, so the same jar runs well on every machine.
+ * <p>
+ * == Delimiter search ==
+ * Rows are cut using a 64-bit bitmap of the delimiter positions in the next 64 bytes, produced by a
+ * {@link DelimiterScanner}. If the jdk.incubator.vector module is available, there is a scanner
+ * for each 128/256/512-bit byte species the CPU supports. Otherwise (or if it turns out to be faster)
+ * a SWAR scanner based on the techniques of CalculateAverage_royvanrijn is used. At startup, every
+ * candidate scans the first block of the file a few times and the fastest one wins.
+ * Each species has its own scanner class, as the Vector API only compiles to SIMD instructions
+ * when the species is a constant.
+ * == Parsing ==
+ * Temperatures are parsed with the branchless SWAR trick from CalculateAverage_merykitty.
+ * All memory access goes through MemorySegment, so no Unsafe is needed.
+ * == Dialects ==
+ * Other feeds than name;-dd.d\n can be described with a {@link Dialect}: delimiter, fixed number
+ * of fraction digits, header and comment lines at the start and \r\n line endings.
+ * Each dialect gets its own {@link RowParser}; the one-digit dialects keep the SWAR parser.
+ * == Data structure ==
+ * Each thread has an open addressing table with the station names copied into a byte[] arena, which
+ * doubles once half full, so any number of stations fits. Tables are merged into a TreeMap at the end.
+ * With --shared-table, all threads share a single lock-free {@link SharedStationTable} instead, so memory
+ * and merge cost don't grow with the thread count.
+ * == Percentiles ==
+ * With --percentiles=50,90,99 (any quantiles), each station also gets an exact {@link Histogram} of its
+ * readings, and the requested percentiles are printed after the max: name=min/mean/max/p50/p90/p99.
+ * The histograms of the threads are merged station by station in parallel.
+ * == Standard deviation ==
+ * With --stddev, each station also keeps the sum of its squared readings as an unsigned 128-bit integer,
+ * so the (population) standard deviation is exact whatever the row count, and is printed after the max.
+ * == Rollups ==
+ * With --catalog=FILE, stations are also rolled up to the groups a {@link Catalog} maps them to (e.g. region
+ * and country), and each level is printed on its own line after the stations. A station is looked up in the
+ * catalog once per table, when it's inserted; the merge then adds its stats to its groups by ID.
+ * == Filters ==
+ * --include-stations=FILE or --exclude-stations=FILE (one name per line) and --min-temperature=T /
+ * --max-temperature=T (inclusive) only aggregate the matching rows. The temperature range is checked on
+ * the parsed value before the table lookup. A {@link StationFilter} is checked once per station and table,
+ * at insert time, and the result is kept in a bitset over the slots, so the rows of dropped stations only
+ * cost the lookup.
+ * == Top-K ==
+ * --top=K or --bottom=K with --by=mean|min|max|count (mean by default) only prints the K stations with the
+ * highest or lowest value, best first (e.g. --top=10 for the hottest, --top=10 --by=count for the most
+ * reported). Instead of merging every station into a sorted map, the per-thread tables are merged into
+ * partitions by name hash in parallel, each partition keeps a heap of its best K slots, and only the
+ * partition winners are named and ranked at the end.
+ * == Time buckets ==
+ * With --timestamps=hour|day, rows are name;epoch seconds;temperature (see CreateMeasurementsFast
+ * --timestamps) and are aggregated per station and hour or day (UTC) by a {@link BucketTable}. The epoch is
+ * 1 to 16 digits with an optional '-', parsed and checked with SWAR too, and the second delimiter comes
+ * from the same bitmap as the first. A row with any other epoch fails the run.
+ * == Input ==
+ * Any number of files, directories (their regular files) and globs (e.g. 'logs/2024-01-*.txt' or
+ * 'logs/**.txt') can be given, ./measurements.txt by default. All files are cut into line-aligned
+ * {@link Segment}s that go into one work queue, so that threads stay busy whatever the mix of file sizes,
+ * and everything is merged into one result. Header and comment lines are skipped in each file.
+ * Files written by CreateMeasurementsFast --gzip ({@link BlockGzip}) are recognized by their first header:
+ * each of their blocks is a {@link CompressedBlock}, queued ahead of the segments and inflated by the
+ * worker that takes it straight into its padded native buffer, where it is parsed.
+ * == Block cache ==
+ * With --block-cache=DIR, the partial aggregates of line-aligned blocks of about --cache-block-size MB (64
+ * by default) of each text file are kept in DIR by a {@link BlockCache_albertoventurini_adaptive}, keyed by
+ * the file's identity and a CRC32C of each block. A rerun only parses the blocks that are new or changed,
+ * e.g. the rows appended to a log since the last run, and merges the cached partials of the others. Plain
+ * aggregation only.
+ * == Sampling ==
+ * --sample=PERCENT estimates the result from that share of 1 MB blocks drawn at random by a
+ * {@link Sampler_albertoventurini_adaptive} (with --seed=N to draw the same ones again), and prints each mean
+ * with its 95% confidence interval: name=min/mean±error/max, where min and max are those of the sample. With
+ * --max-error=T, it stops as soon as every interval is within +/-T. Plain aggregation of text files only.
+ * <p>
+ * Usage: [--verbose] [--shared-table | --percentiles=Q,... --stddev --catalog=FILE --include-stations=FILE
+ * --exclude-stations=FILE --min-temperature=T --max-temperature=T --top=K --bottom=K --by=V | --timestamps=hour|day | --block-cache=DIR --cache-block-size=MB | --sample=PERCENT --max-error=T --seed=N] [--delimiter=C] [--precision=N] [--header-lines=N] [--comment=C] [--crlf] [file | directory | glob]...
+ * <p>
+ * --verbose prints the scanner timings, and how many blocks were taken from the block cache, to stderr.
+ */
+public class CalculateAverage_albertoventurini_adaptive {
+
+    static final String FILE = "./measurements.txt";
+
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // The longest row is 100 bytes of name, ';', "-99.9" and '\n'. Rows starting closer than this to the end
+    // of the file are parsed from a padded copy, so that the fast path never reads past the end.
+    private static final int PADDING = 256;
+
+    private static final int CALIBRATION_BLOCK_SIZE = 1 << 20;
+
+    // Bounds of the segment size: small enough to balance, big enough for the queue not to matter
+    private static final long MIN_SEGMENT_SIZE = 1 << 20;
+    private static final long MAX_SEGMENT_SIZE = 16 << 20;
+    private static final int CALIBRATION_ROUNDS = 5;
+
+    /**
+     * The layout of a row: name, delimiter, temperature with a fixed number of fraction digits
+     * and a line ending. The file may start with header lines, then lines starting with the
+     * comment byte (0 if there are none).
+     */
+    record Dialect(byte delimiter, int precision, int headerLines, byte comment, boolean crlf) {
+        static final Dialect DEFAULT = new Dialect((byte) ';', 1, 0, (byte) 0, false);
+
+        Dialect {
+            if (delimiter == '-' || delimiter == '.' || delimiter == '\r' || delimiter == '\n' || (delimiter >= '0' && delimiter <= '9')) {
+                throw new IllegalArgumentException("Delimiter can't be part of a temperature or line ending: " + (char) delimiter);
+            }
+            if (precision < 0 || precision > 3) {
+                throw new IllegalArgumentException("Precision must be between 0 and 3: " + precision);
+            }
+        }
+
+        // The largest absolute reading, in units of the last digit
+        int maxReading() {
+            return (int) Math.pow(10, precision + 2) - 1;
+        }
+
+        int lineEndLength() {
+            return crlf ? 2 : 1;
+        }
+
+        RowParser<Stations> rowParser() {
+            if (precision == 1) {
+                return crlf ? new DecimalCrLfRowParser() : new DecimalRowParser();
+            }
+            return new GenericRowParser(precision, lineEndLength());
+        }
+
+        // Offset of the first row
+        long dataStart(MemorySegment data) {
+            long offset = 0;
+            for (int i = 0; i < headerLines; i++) {
+                offset = lineEnd(data, offset);
+            }
+            while (comment != 0 && offset < data.byteSize() && data.get(ValueLayout.JAVA_BYTE, offset) == comment) {
+                offset = lineEnd(data, offset);
+            }
+            return offset;
+        }
+
+        private static long lineEnd(MemorySegment data, long offset) {
+            long size = data.byteSize();
+            while (offset < size && data.get(ValueLayout.JAVA_BYTE, offset) != '\n') {
+                offset++;
+            }
+            return Math.min(offset + 1, size);
+        }
+
+        String format(long value) {
+            return precision == 1 ? Double.toString(value / 10.0) : BigDecimal.valueOf(value, precision).toPlainString();
+        }
+
+        /**
+         * Returns this dialect changed by a command line option like --delimiter=C, or null if arg isn't one.
+         */
+        Dialect withOption(String arg) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--delimiter=")) {
+                byte d = value.equals("\\t") ? (byte) '\t' : value.getBytes(StandardCharsets.UTF_8)[0];
+                return new Dialect(d, precision, headerLines, comment, crlf);
+            }
+            if (arg.startsWith("--precision=")) {
+                return new Dialect(delimiter, Integer.parseInt(value), headerLines, comment, crlf);
+            }
+            if (arg.startsWith("--header-lines=")) {
+                return new Dialect(delimiter, precision, Integer.parseInt(value), comment, crlf);
+            }
+            if (arg.startsWith("--comment=")) {
+                return new Dialect(delimiter, precision, headerLines, value.getBytes(StandardCharsets.UTF_8)[0], crlf);
+            }
+            if (arg.equals("--crlf")) {
+                return new Dialect(delimiter, precision, headerLines, comment, true);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Returns a bitmap with bit i set if the byte at offset + i is the delimiter.
+     * There must be at least 64 readable bytes at offset.
+     */
+    abstract static class DelimiterScanner {
+        final byte delimiter;
+
+        DelimiterScanner(byte delimiter) {
+            this.delimiter = delimiter;
+        }
+
+        abstract String name();
+
+        abstract long scan(MemorySegment data, long offset);
+    }
+
+    static final class SwarScanner extends DelimiterScanner {
+        private static final long LOW_SEVEN_BITS = 0x7F7F7F7F7F7F7F7FL;
+        private static final long GATHER_HIGH_BITS = 0x0102040810204080L;
+
+        private final long delimiters;
+
+        SwarScanner(byte delimiter) {
+            super(delimiter);
+            delimiters = (delimiter & 0xFFL) * 0x0101010101010101L;
+        }
+
+        @Override
+        String name() {
+            return "swar";
+        }
+
+        @Override
+        long scan(MemorySegment data, long offset) {
+            long bits = 0;
+            for (int i = 0; i < Long.SIZE; i += Long.BYTES) {
+                bits |= matches(data.get(LONG_LE, offset + i)) << i;
+            }
+            return bits;
+        }
+
+        // One bit per byte of word that is the delimiter. Unlike the usual (x - 0x01..) & ~x & 0x80.. trick,
+        // this is exact for every byte, not only for the first match.
+        private long matches(long word) {
+            long x = word ^ delimiters;
+            long highBits = ~(((x & LOW_SEVEN_BITS) + LOW_SEVEN_BITS) | x | LOW_SEVEN_BITS);
+            return ((highBits >>> 7) * GATHER_HIGH_BITS) >>> 56;
+        }
+    }
+
+    /**
+     * Only loaded if jdk.incubator.vector is present.
+     */
+    static final class VectorScanners {
+        static List<DelimiterScanner> supported(byte delimiter) {
+            int maxBits = ByteVector.SPECIES_MAX.vectorBitSize();
+            List<DelimiterScanner> scanners = new ArrayList<>();
+            if (maxBits >= 128) {
+                scanners.add(new Vector128Scanner(delimiter));
+            }
+            if (maxBits >= 256) {
+                scanners.add(new Vector256Scanner(delimiter));
+            }
+            if (maxBits >= 512) {
+                scanners.add(new Vector512Scanner(delimiter));
+            }
+            return scanners;
+        }
+    }
+
+    static final class Vector128Scanner extends DelimiterScanner {
+        private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_128;
+
+        Vector128Scanner(byte delimiter) {
+            super(delimiter);
+        }
+
+        @Override
+        String name() {
+            return "vector-128";
+        }
+
+        @Override
+        long scan(MemorySegment data, long offset) {
+            long bits = 0;
+            for (int i = 0; i < Long.SIZE; i += 16) {
+                bits |= ByteVector.fromMemorySegment(SPECIES, data, offset + i, ByteOrder.LITTLE_ENDIAN).eq(delimiter).toLong() << i;
+            }
+            return bits;
+        }
+    }
+
+    static final class Vector256Scanner extends DelimiterScanner {
+        private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_256;
+
+        Vector256Scanner(byte delimiter) {
+            super(delimiter);
+        }
+
+        @Override
+        String name() {
+            return "vector-256";
+        }
+
+        @Override
+        long scan(MemorySegment data, long offset) {
+            long low = ByteVector.fromMemorySegment(SPECIES, data, offset, ByteOrder.LITTLE_ENDIAN).eq(delimiter).toLong();
+            long high = ByteVector.fromMemorySegment(SPECIES, data, offset + 32, ByteOrder.LITTLE_ENDIAN).eq(delimiter).toLong();
+            return low | high << 32;
+        }
+    }
+
+    static final class Vector512Scanner extends DelimiterScanner {
+        private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_512;
+
+        Vector512Scanner(byte delimiter) {
+            super(delimiter);
+        }
+
+        @Override
+        String name() {
+            return "vector-512";
+        }
+
+        @Override
+        long scan(MemorySegment data, long offset) {
+            return ByteVector.fromMemorySegment(SPECIES, data, offset, ByteOrder.LITTLE_ENDIAN).eq(delimiter).toLong();
+        }
+    }
+
+    static List<DelimiterScanner> candidates(byte delimiter) {
+        List<DelimiterScanner> candidates = new ArrayList<>();
+        candidates.add(new SwarScanner(delimiter));
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            candidates.addAll(VectorScanners.supported(delimiter));
+        }
+        return candidates;
+    }
+
+    // Scan the first block with every candidate and return the fastest one. The candidates take turns,
+    // so that they all get JIT-compiled early on, and the best round of each one counts.
+    static DelimiterScanner calibrate(List<DelimiterScanner> candidates, MemorySegment data, boolean verbose) {
+        long blockEnd = Math.min(CALIBRATION_BLOCK_SIZE, data.byteSize() - PADDING);
+        if (candidates.size() == 1 || blockEnd < CALIBRATION_BLOCK_SIZE / 4) {
+            // Too little data for the timings to mean anything, take the widest one
+            return candidates.getLast();
+        }
+
+        long[] bestNanos = new long[candidates.size()];
+        Arrays.fill(bestNanos, Long.MAX_VALUE);
+        long blackhole = 0;
+        for (int round = 0; round < CALIBRATION_ROUNDS; round++) {
+            for (int i = 0; i < candidates.size(); i++) {
+                DelimiterScanner candidate = candidates.get(i);
+                long start = System.nanoTime();
+                for (long offset = 0; offset < blockEnd; offset += Long.SIZE) {
+                    blackhole += candidate.scan(data, offset);
+                }
+                bestNanos[i] = Math.min(bestNanos[i], System.nanoTime() - start);
+            }
+        }
+
+        int fastest = 0;
+        for (int i = 0; i < candidates.size(); i++) {
+            if (verbose) {
+                System.err.printf("%s: %.1f MB/s%n", candidates.get(i).name(), blockEnd / 1e6 / (bestNanos[i] / 1e9));
+            }
+            if (bestNanos[i] < bestNanos[fastest]) {
+                fastest = i;
+            }
+        }
+        if (verbose) {
+            System.err.println("using " + candidates.get(fastest).name() + " (" + (blackhole & 1) + ")");
+        }
+        return candidates.get(fastest);
+    }
+
+    // min, max, sum, count, and the low and high halves of the sum of squares (0 without --stddev)
+    static long[] newStats() {
+        return new long[]{ Integer.MAX_VALUE, Integer.MIN_VALUE, 0, 0, 0, 0 };
+    }
+
+    /**
+     * The population standard deviation sqrt(count * squares - sum^2) / count, rounded half up like the mean.
+     */
+    static long stddev(long[] stats) {
+        BigInteger squares = BigInteger.valueOf(stats[5]).shiftLeft(Long.SIZE).add(new BigInteger(Long.toUnsignedString(stats[4])));
+        BigInteger sum = BigInteger.valueOf(stats[2]);
+        BigInteger count = BigInteger.valueOf(stats[3]);
+        BigDecimal scaled = new BigDecimal(count.multiply(squares).subtract(sum.multiply(sum)));
+        return scaled.sqrt(MathContext.DECIMAL128).divide(new BigDecimal(count), 0, RoundingMode.HALF_UP).longValueExact();
+    }
+
+    static void addStats(long[] stats, int min, int max, long sum, int count, long squaresLow, long squaresHigh) {
+        stats[0] = Math.min(stats[0], min);
+        stats[1] = Math.max(stats[1], max);
+        stats[2] += sum;
+        stats[3] += count;
+        long low = stats[4] + squaresLow;
+        stats[5] += squaresHigh + (Long.compareUnsigned(low, stats[4]) < 0 ? 1 : 0);
+        stats[4] = low;
+    }
+
+    /**
+     * Maps stations to groups at one or more levels, read from a file like:
+     *
+     * <pre>
+     * station;region;country
+     * Hamburg;Western Europe;Germany
+     * </pre>
+     *
+     * The header names the levels. Each group gets a dense ID per level, 0 being the group of the stations
+     * that aren't in the catalog.
+     */
+    static final class Catalog {
+        static final String UNMAPPED = "(unmapped)";
+
+        final String[] levels;
+        private final ByteKeyHashMap stations;
+        // Group ID per level and catalog station
+        private final int[][] groupIds;
+        private final List<List<String>> groupNames = new ArrayList<>();
+
+        Catalog(Path file) throws IOException {
+            List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            if (lines.isEmpty()) {
+                throw new IllegalArgumentException("Empty catalog: " + file);
+            }
+            String[] header = lines.getFirst().split(";", -1);
+            if (header.length < 2) {
+                throw new IllegalArgumentException("The catalog needs at least one level after the station: " + file);
+            }
+            levels = Arrays.copyOfRange(header, 1, header.length);
+            stations = new ByteKeyHashMap(lines.size());
+            groupIds = new int[levels.length][lines.size()];
+            List<Map<String, Integer>> ids = new ArrayList<>();
+            for (int level = 0; level < levels.length; level++) {
+                groupNames.add(new ArrayList<>(List.of(UNMAPPED)));
+                ids.add(new HashMap<>());
+            }
+
+            for (int line = 1; line < lines.size(); line++) {
+                if (lines.get(line).isEmpty()) {
+                    continue;
+                }
+                String[] fields = lines.get(line).split(";", -1);
+                if (fields.length != header.length) {
+                    throw new IllegalArgumentException("Line " + (line + 1) + " of the catalog should have " + header.length + " fields: " + lines.get(line));
+                }
+                byte[] name = fields[0].getBytes(StandardCharsets.UTF_8);
+                int station = stations.put(name, 0, name.length, ByteKeyHashMap.hash(name, 0, name.length));
+                if (station != stations.size() - 1) {
+                    throw new IllegalArgumentException("Station " + fields[0] + " is in the catalog twice");
+                }
+                for (int level = 0; level < levels.length; level++) {
+                    List<String> names = groupNames.get(level);
+                    groupIds[level][station] = ids.get(level).computeIfAbsent(fields[level + 1], k -> {
+                        names.add(k);
+                        return names.size() - 1;
+                    });
+                }
+            }
+        }
+
+        /**
+         * Returns the index of the station in the catalog, or -1.
+         */
+        int indexOf(MemorySegment data, long nameStart, int nameLength) {
+            return stations.get(data, nameStart, nameLength, ByteKeyHashMap.hash(data, nameStart, nameLength));
+        }
+
+        int groupId(int level, int station) {
+            return station < 0 ? 0 : groupIds[level][station];
+        }
+
+        int groupCount(int level) {
+            return groupNames.get(level).size();
+        }
+
+        String groupName(int level, int groupId) {
+            return groupNames.get(level).get(groupId);
+        }
+    }
+
+    /**
+     * The stations listed in a file, one per line, to either keep or drop.
+     */
+    static final class StationFilter {
+        private final ByteKeyHashMap names = new ByteKeyHashMap();
+        private final boolean include;
+
+        StationFilter(Path file, boolean include) throws IOException {
+            this.include = include;
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                if (!line.isEmpty()) {
+                    byte[] name = line.getBytes(StandardCharsets.UTF_8);
+                    names.put(name, 0, name.length, ByteKeyHashMap.hash(name, 0, name.length));
+                }
+            }
+        }
+
+        boolean accepts(MemorySegment data, long nameStart, int nameLength) {
+            return (names.get(data, nameStart, nameLength, ByteKeyHashMap.hash(data, nameStart, nameLength)) >= 0) == include;
+        }
+    }
+
+    /**
+     * What the tables keep beyond min/max/sum/count, and which rows they aggregate.
+     *
+     * @param histogramMaxReading if not 0, keep a histogram of readings in [-histogramMaxReading, histogramMaxReading] per station
+     * @param squares whether to keep the sum of squared readings per station
+     * @param catalog if not null, the catalog to look the stations up in for rollups
+     * @param stationFilter if not null, the stations to keep or drop
+     * @param minValue the smallest reading to keep
+     * @param maxValue the largest reading to keep
+     */
+    record Query(int histogramMaxReading, boolean squares, Catalog catalog, StationFilter stationFilter, int minValue, int maxValue) {
+        static final Query ALL = new Query(0, false, null, null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+        boolean isAll() {
+            return equals(ALL);
+        }
+    }
+
+    /**
+     * What --top and --bottom rank stations by.
+     */
+    enum RankBy {
+        MEAN,
+        MIN,
+        MAX,
+        COUNT;
+
+        double key(long min, long max, long sum, long count) {
+            return switch (this) {
+                case MEAN -> (double) sum / count;
+                case MIN -> min;
+                case MAX -> max;
+                case COUNT -> count;
+            };
+        }
+
+        double key(long[] stats) {
+            return key(stats[0], stats[1], stats[2], stats[3]);
+        }
+    }
+
+    record Ranked(String name, long[] stats) {
+    }
+
+    /**
+     * Returns the k stations with the highest (or lowest) key over all tables, best first; ties go to the
+     * first name. The tables are merged into one partition per thread by name hash, each partition picks
+     * its best k with a bounded heap, and the winners are ranked.
+     */
+    static List<Ranked> rank(StationTable[] tables, int k, RankBy by, boolean highest, boolean squares) {
+        int partitions = tables.length;
+        long stations = 0;
+        for (StationTable table : tables) {
+            stations += table.size;
+        }
+        int capacity = Math.max(16, Integer.highestOneBit((int) Math.max(1, 2 * stations / partitions)) << 1);
+        Query merged = new Query(0, squares, null, null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+
+        Comparator<Ranked> order = Comparator.comparingDouble((Ranked r) -> by.key(r.stats));
+        order = (highest ? order.reversed() : order).thenComparing(Ranked::name);
+        return IntStream.range(0, partitions).parallel()
+                .mapToObj(partition -> {
+                    StationTable target = new StationTable(capacity, merged);
+                    for (StationTable table : tables) {
+                        table.mergeInto(target, partition, partitions);
+                    }
+                    return target.best(k, by, highest);
+                })
+                .flatMap(List::stream)
+                .sorted(order)
+                .limit(k)
+                .toList();
+    }
+
+    /**
+     * Where the parsers put the rows without timestamps.
+     */
+    abstract static class Stations {
+        abstract void add(MemorySegment data, long nameStart, int nameLength, long hash, int value);
+    }
+
+    /**
+     * Per-thread table for timestamped rows, keyed by (station, time bucket). Stations get a dense ID from a
+     * {@link ByteKeyHashMap}; the (station ID, bucket) pair is then looked up as a single long in an open
+     * addressing table, whose values index flat stat arrays. Both grow as needed.
+     */
+    static final class BucketTable {
+        private final long bucketSeconds;
+        private final ByteKeyHashMap stations = new ByteKeyHashMap(1024);
+
+        // (station ID << 32 | bucket) + 1, 0 for an empty slot
+        private long[] keys = new long[1 << 14];
+        private int[] indexes = new int[keys.length];
+        private int mask = keys.length - 1;
+
+        private int size;
+        private long[] entryKeys = new long[1 << 12];
+        private int[] mins = new int[entryKeys.length];
+        private int[] maxs = new int[entryKeys.length];
+        private long[] sums = new long[entryKeys.length];
+        private int[] counts = new int[entryKeys.length];
+
+        BucketTable(long bucketSeconds) {
+            this.bucketSeconds = bucketSeconds;
+        }
+
+        void add(MemorySegment data, long nameStart, int nameLength, long hash, long epochSecond, int value) {
+            long bucket = Math.floorDiv(epochSecond, bucketSeconds);
+            if ((int) bucket != bucket) {
+                throw new IllegalArgumentException("Timestamp out of range: " + epochSecond);
+            }
+            long station = stations.put(data, nameStart, nameLength, (int) hash);
+            long key = (station << 32 | (bucket & 0xFFFFFFFFL)) + 1;
+            long mixed = key * HASH_MULTIPLIER;
+            int slot = (int) (mixed ^ mixed >>> 32) & mask;
+            while (true) {
+                long k = keys[slot];
+                if (k == key) {
+                    int index = indexes[slot];
+                    mins[index] = Math.min(mins[index], value);
+                    maxs[index] = Math.max(maxs[index], value);
+                    sums[index] += value;
+                    counts[index]++;
+                    return;
+                }
+                if (k == 0) {
+                    insert(slot, key, value);
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void insert(int slot, long key, int value) {
+            if (size == entryKeys.length) {
+                int capacity = size * 2;
+                entryKeys = Arrays.copyOf(entryKeys, capacity);
+                mins = Arrays.copyOf(mins, capacity);
+                maxs = Arrays.copyOf(maxs, capacity);
+                sums = Arrays.copyOf(sums, capacity);
+                counts = Arrays.copyOf(counts, capacity);
+            }
+            int index = size++;
+            entryKeys[index] = key;
+            mins[index] = value;
+            maxs[index] = value;
+            sums[index] = value;
+            counts[index] = 1;
+            keys[slot] = key;
+            indexes[slot] = index;
+            if (size > keys.length / 2) {
+                resize();
+            }
+        }
+
+        private void resize() {
+            keys = new long[keys.length * 2];
+            indexes = new int[keys.length];
+            mask = keys.length - 1;
+            for (int index = 0; index < size; index++) {
+                long mixed = entryKeys[index] * HASH_MULTIPLIER;
+                int slot = (int) (mixed ^ mixed >>> 32) & mask;
+                while (keys[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = entryKeys[index];
+                indexes[slot] = index;
+            }
+        }
+
+        // Keyed by station, then by the start of the bucket in epoch seconds
+        void mergeInto(Map<String, Map<Long, long[]>> result) {
+            String[] names = new String[stations.size()];
+            for (int index = 0; index < size; index++) {
+                long key = entryKeys[index] - 1;
+                int station = (int) (key >>> 32);
+                if (names[station] == null) {
+                    names[station] = stations.keyString(station);
+                }
+                long bucketStart = (int) key * bucketSeconds;
+                long[] stats = result.computeIfAbsent(names[station], k -> new TreeMap<>()).computeIfAbsent(bucketStart, k -> newStats());
+                addStats(stats, mins[index], maxs[index], sums[index], counts[index], 0, 0);
+            }
+        }
+    }
+
+    /**
+     * Exact histogram of the readings of a station, in [-maxReading, maxReading]. It starts as a list
+     * of the readings, and becomes an array of counts per reading (char, or int once a count overflows)
+     * when the list gets as big as that array.
+     */
+    static final class Histogram {
+        private final int maxReading;
+        private final int sparseLimit;
+        private int[] readings = new int[8];
+        private int size;
+        private char[] narrow;
+        private int[] wide;
+
+        Histogram(int maxReading) {
+            this.maxReading = maxReading;
+            this.sparseLimit = maxReading;
+        }
+
+        void add(int value) {
+            int index = value + maxReading;
+            if (wide != null) {
+                wide[index]++;
+            }
+            else if (narrow != null) {
+                if (narrow[index] == Character.MAX_VALUE) {
+                    wide = new int[narrow.length];
+                    for (int i = 0; i < narrow.length; i++) {
+                        wide[i] = narrow[i];
+                    }
+                    narrow = null;
+                    wide[index]++;
+                }
+                else {
+                    narrow[index]++;
+                }
+            }
+            else if (size < sparseLimit) {
+                if (size == readings.length) {
+                    readings = Arrays.copyOf(readings, Math.min(size * 2, sparseLimit));
+                }
+                readings[size++] = value;
+            }
+            else {
+                narrow = new char[2 * maxReading + 1];
+                for (int i = 0; i < size; i++) {
+                    narrow[readings[i] + maxReading]++;
+                }
+                readings = null;
+                add(value);
+            }
+        }
+
+        // counts is indexed by reading + maxReading
+        void addTo(long[] counts) {
+            if (wide != null) {
+                for (int i = 0; i < wide.length; i++) {
+                    counts[i] += wide[i];
+                }
+            }
+            else if (narrow != null) {
+                for (int i = 0; i < narrow.length; i++) {
+                    counts[i] += narrow[i];
+                }
+            }
+            else {
+                for (int i = 0; i < size; i++) {
+                    counts[readings[i] + maxReading]++;
+                }
+            }
+        }
+
+        /**
+         * Merges the histograms of a station and returns its percentiles, using the nearest rank:
+         * the smallest reading with at least ceil(q / 100 * count) readings at or below it.
+         */
+        static long[] percentiles(List<Histogram> histograms, double[] quantiles) {
+            int maxReading = histograms.getFirst().maxReading;
+            long[] counts = new long[2 * maxReading + 1];
+            for (Histogram histogram : histograms) {
+                histogram.addTo(counts);
+            }
+            long total = 0;
+            for (long count : counts) {
+                total += count;
+            }
+
+            long[] percentiles = new long[quantiles.length];
+            for (int q = 0; q < quantiles.length; q++) {
+                long rank = Math.max(1, (long) Math.ceil(quantiles[q] / 100 * total));
+                long seen = 0;
+                int i = 0;
+                while ((seen += counts[i]) < rank) {
+                    i++;
+                }
+                percentiles[q] = i - maxReading;
+            }
+            return percentiles;
+        }
+    }
+
+    // Per-thread open addressing table. Names are copied to a byte[] arena, so that rows
+    // from the padded tail copy can be stored next to rows from the mapped file. The table
+    // doubles once half of its slots are taken, so the capacity is only a starting point.
+    static final class StationTable extends Stations {
+        static final int DEFAULT_CAPACITY = 1 << 17;
+
+        private int mask;
+        // Slots taken, by kept and dropped stations
+        private int used;
+        // Low bits of the hash of the name in each slot, to move it when resizing
+        private int[] hashes;
+        // Only with percentiles
+        private Histogram[] histograms;
+        private final int maxReading;
+        // Only with stddev: sum of the squared readings, as an unsigned 128-bit integer
+        private final boolean squares;
+        private long[] squaresLow;
+        private long[] squaresHigh;
+        // Only with a catalog: index of the station in it, or -1
+        private final Catalog catalog;
+        private int[] catalogIndexes;
+        // Only with a station filter: bit set for the slots of dropped stations
+        private final StationFilter stationFilter;
+        private long[] dropped;
+        private final int minValue;
+        private final int maxValue;
+        int[] nameOffsets;
+        int[] nameLengths;
+        int[] mins;
+        int[] maxs;
+        long[] sums;
+        int[] counts;
+        // Stations kept
+        int size;
+
+        byte[] names = new byte[1 << 16];
+        MemorySegment namesSegment = MemorySegment.ofArray(names);
+        int namesSize = 0;
+
+        StationTable() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        StationTable(int capacity) {
+            this(capacity, Query.ALL);
+        }
+
+        StationTable(int capacity, Query query) {
+            maxReading = query.histogramMaxReading();
+            squares = query.squares();
+            catalog = query.catalog();
+            stationFilter = query.stationFilter();
+            minValue = query.minValue();
+            maxValue = query.maxValue();
+            allocate(capacity);
+        }
+
+        private void allocate(int capacity) {
+            mask = capacity - 1;
+            hashes = new int[capacity];
+            histograms = maxReading != 0 ? new Histogram[capacity] : null;
+            squaresLow = squares ? new long[capacity] : null;
+            squaresHigh = squares ? new long[capacity] : null;
+            catalogIndexes = catalog != null ? new int[capacity] : null;
+            dropped = stationFilter != null ? new long[(capacity + 63) / 64] : null;
+            nameOffsets = new int[capacity];
+            nameLengths = new int[capacity];
+            mins = new int[capacity];
+            maxs = new int[capacity];
+            sums = new long[capacity];
+            counts = new int[capacity];
+        }
+
+        @Override
+        void add(MemorySegment data, long nameStart, int nameLength, long hash, int value) {
+            if (value < minValue || value > maxValue) {
+                return;
+            }
+            int slot = (int) hash & mask;
+            while (true) {
+                int count = counts[slot];
+                if (count == 0) {
+                    insert(slot, data, nameStart, nameLength, (int) hash, value);
+                    return;
+                }
+                if (nameLengths[slot] == nameLength) {
+                    int nameOffset = nameOffsets[slot];
+                    if (MemorySegment.mismatch(namesSegment, nameOffset, nameOffset + nameLength, data, nameStart, nameStart + nameLength) == -1) {
+                        if (dropped != null && isDropped(slot)) {
+                            return;
+                        }
+                        mins[slot] = Math.min(mins[slot], value);
+                        maxs[slot] = Math.max(maxs[slot], value);
+                        sums[slot] += value;
+                        counts[slot] = count + 1;
+                        if (histograms != null) {
+                            histograms[slot].add(value);
+                        }
+                        if (squaresLow != null) {
+                            addSquare(slot, value);
+                        }
+                        return;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private void insert(int slot, MemorySegment data, long nameStart, int nameLength, int hash, int value) {
+            copyName(slot, data, nameStart, nameLength, hash);
+            if (stationFilter != null && !stationFilter.accepts(data, nameStart, nameLength)) {
+                // Only counted to mark the slot as taken
+                dropped[slot >>> 6] |= 1L << slot;
+                counts[slot] = 1;
+            }
+            else {
+                size++;
+                mins[slot] = value;
+                maxs[slot] = value;
+                sums[slot] = value;
+                counts[slot] = 1;
+                if (histograms != null) {
+                    histograms[slot] = new Histogram(maxReading);
+                    histograms[slot].add(value);
+                }
+                if (squaresLow != null) {
+                    addSquare(slot, value);
+                }
+                if (catalog != null) {
+                    catalogIndexes[slot] = catalog.indexOf(data, nameStart, nameLength);
+                }
+            }
+            if (++used > counts.length / 2) {
+                resize();
+            }
+        }
+
+        private void copyName(int slot, MemorySegment data, long nameStart, int nameLength, int hash) {
+            if (namesSize + nameLength > names.length) {
+                names = Arrays.copyOf(names, Math.max(names.length * 2, namesSize + nameLength));
+                namesSegment = MemorySegment.ofArray(names);
+            }
+            MemorySegment.copy(data, nameStart, namesSegment, namesSize, nameLength);
+            nameOffsets[slot] = namesSize;
+            nameLengths[slot] = nameLength;
+            hashes[slot] = hash;
+            namesSize += nameLength;
+        }
+
+        private void resize() {
+            int[] oldHashes = hashes;
+            Histogram[] oldHistograms = histograms;
+            long[] oldSquaresLow = squaresLow;
+            long[] oldSquaresHigh = squaresHigh;
+            int[] oldCatalogIndexes = catalogIndexes;
+            long[] oldDropped = dropped;
+            int[] oldNameOffsets = nameOffsets;
+            int[] oldNameLengths = nameLengths;
+            int[] oldMins = mins;
+            int[] oldMaxs = maxs;
+            long[] oldSums = sums;
+            int[] oldCounts = counts;
+            allocate(oldCounts.length * 2);
+            for (int from = 0; from < oldCounts.length; from++) {
+                if (oldCounts[from] == 0) {
+                    continue;
+                }
+                int slot = oldHashes[from] & mask;
+                while (counts[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                hashes[slot] = oldHashes[from];
+                nameOffsets[slot] = oldNameOffsets[from];
+                nameLengths[slot] = oldNameLengths[from];
+                mins[slot] = oldMins[from];
+                maxs[slot] = oldMaxs[from];
+                sums[slot] = oldSums[from];
+                counts[slot] = oldCounts[from];
+                if (histograms != null) {
+                    histograms[slot] = oldHistograms[from];
+                }
+                if (squaresLow != null) {
+                    squaresLow[slot] = oldSquaresLow[from];
+                    squaresHigh[slot] = oldSquaresHigh[from];
+                }
+                if (catalogIndexes != null) {
+                    catalogIndexes[slot] = oldCatalogIndexes[from];
+                }
+                if (dropped != null && (oldDropped[from >>> 6] & 1L << from) != 0) {
+                    dropped[slot >>> 6] |= 1L << slot;
+                }
+            }
+        }
+
+        private String name(int slot) {
+            return new String(names, nameOffsets[slot], nameLengths[slot], StandardCharsets.UTF_8);
+        }
+
+        private boolean isDropped(int slot) {
+            return (dropped[slot >>> 6] & 1L << slot) != 0;
+        }
+
+        // Whether the slot has stats to report
+        private boolean isKept(int slot) {
+            return counts[slot] != 0 && (dropped == null || !isDropped(slot));
+        }
+
+        private void addSquare(int slot, int value) {
+            long square = (long) value * value;
+            long low = squaresLow[slot] + square;
+            if (Long.compareUnsigned(low, square) < 0) {
+                squaresHigh[slot]++;
+            }
+            squaresLow[slot] = low;
+        }
+
+        void mergeInto(Map<String, long[]> result) {
+            mergeInto(result, null);
+        }
+
+        // Also collects the histograms of each station, if both the table and the caller have them
+        void mergeInto(Map<String, long[]> result, Map<String, List<Histogram>> stationHistograms) {
+            for (int slot = 0; slot < counts.length; slot++) {
+                if (!isKept(slot)) {
+                    continue;
+                }
+                String name = new String(names, nameOffsets[slot], nameLengths[slot], StandardCharsets.UTF_8);
+                if (histograms != null && stationHistograms != null) {
+                    stationHistograms.computeIfAbsent(name, k -> new ArrayList<>()).add(histograms[slot]);
+                }
+                addSlotTo(result.computeIfAbsent(name, k -> newStats()), slot);
+            }
+        }
+
+        /**
+         * Adds the stations whose name hash falls into the partition to target, a table that only gets
+         * stations this way.
+         */
+        void mergeInto(StationTable target, int partition, int partitions) {
+            for (int slot = 0; slot < counts.length; slot++) {
+                if (!isKept(slot)) {
+                    continue;
+                }
+                // Every table stores the hash the row parsers computed, so the same name lands in the same partition.
+                // The high bits pick the partition, the low bits the slot in the target.
+                int hash = hashes[slot];
+                if ((int) ((hash * 0x9E3779B9L & 0xFFFFFFFFL) * partitions >>> 32) == partition) {
+                    target.mergeSlot(this, slot, hash);
+                }
+            }
+        }
+
+        private void mergeSlot(StationTable source, int from, int hash) {
+            int nameOffset = source.nameOffsets[from];
+            int nameLength = source.nameLengths[from];
+            int slot = hash & mask;
+            boolean inserted = false;
+            while (true) {
+                if (counts[slot] == 0) {
+                    copyName(slot, source.namesSegment, nameOffset, nameLength, hash);
+                    size++;
+                    mins[slot] = Integer.MAX_VALUE;
+                    maxs[slot] = Integer.MIN_VALUE;
+                    inserted = true;
+                    break;
+                }
+                if (nameLengths[slot] == nameLength && MemorySegment.mismatch(namesSegment, nameOffsets[slot], nameOffsets[slot] + nameLength,
+                        source.namesSegment, nameOffset, nameOffset + nameLength) == -1) {
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            mins[slot] = Math.min(mins[slot], source.mins[from]);
+            maxs[slot] = Math.max(maxs[slot], source.maxs[from]);
+            sums[slot] += source.sums[from];
+            counts[slot] += source.counts[from];
+            if (squaresLow != null) {
+                long low = squaresLow[slot] + source.squaresLow[from];
+                squaresHigh[slot] += source.squaresHigh[from] + (Long.compareUnsigned(low, squaresLow[slot]) < 0 ? 1 : 0);
+                squaresLow[slot] = low;
+            }
+            if (inserted && ++used > counts.length / 2) {
+                resize();
+            }
+        }
+
+        /**
+         * The k stations of this table with the highest (or lowest) key, found with a heap of slots whose
+         * root is the worst one kept so far. Names are only decoded to break ties.
+         */
+        List<Ranked> best(int k, RankBy by, boolean highest) {
+            Comparator<Integer> better = (a, b) -> {
+                int c = Double.compare(by.key(mins[a], maxs[a], sums[a], counts[a]), by.key(mins[b], maxs[b], sums[b], counts[b]));
+                return c != 0 ? (highest ? c : -c) : name(b).compareTo(name(a));
+            };
+            PriorityQueue<Integer> heap = new PriorityQueue<>(k + 1, better);
+            for (int slot = 0; slot < counts.length; slot++) {
+                if (!isKept(slot)) {
+                    continue;
+                }
+                if (heap.size() < k) {
+                    heap.add(slot);
+                }
+                else if (better.compare(slot, heap.peek()) > 0) {
+                    heap.poll();
+                    heap.add(slot);
+                }
+            }
+            List<Ranked> best = new ArrayList<>(heap.size());
+            for (int slot : heap) {
+                long[] stats = newStats();
+                addSlotTo(stats, slot);
+                best.add(new Ranked(name(slot), stats));
+            }
+            return best;
+        }
+
+        /**
+         * Adds the stats of each station to those of its catalog groups, in groupStats[level][group ID].
+         */
+        void rollUpInto(long[][][] groupStats) {
+            for (int slot = 0; slot < counts.length; slot++) {
+                if (!isKept(slot)) {
+                    continue;
+                }
+                for (int level = 0; level < groupStats.length; level++) {
+                    int groupId = catalog.groupId(level, catalogIndexes[slot]);
+                    if (groupStats[level][groupId] == null) {
+                        groupStats[level][groupId] = newStats();
+                    }
+                    addSlotTo(groupStats[level][groupId], slot);
+                }
+            }
+        }
+
+        private void addSlotTo(long[] stats, int slot) {
+            addStats(stats, mins[slot], maxs[slot], sums[slot], counts[slot],
+                    squaresLow != null ? squaresLow[slot] : 0, squaresHigh != null ? squaresHigh[slot] : 0);
+        }
+    }
+
+    /**
+     * One open addressing table shared by all threads. A slot is claimed by CAS-ing its tag (the hash,
+     * never 0) from 0; the winner then publishes the name. Threads that see the tag before the name
+     * wait for it. Stats are kept in stripes of min/max/sum/count cells, one array per stripe, and
+     * each thread updates the stripe of its index, so that threads hitting the same station rarely
+     * update the same cache line. The stripe count shrinks as the capacity grows: with more stations,
+     * collisions between threads are rarer and the memory matters more.
+     * <p>
+     * The table can't grow while threads probe it. Once three quarters of its slots are claimed, the
+     * stations that aren't in it yet go to a growing {@link StationTable} of each worker instead, which
+     * is merged with the rest at the end.
+     */
+    static final class SharedStationTable {
+        private static final VarHandle TAGS = MethodHandles.arrayElementVarHandle(long[].class);
+        private static final VarHandle KEYS = MethodHandles.arrayElementVarHandle(byte[][].class);
+        private static final VarHandle CELLS = MethodHandles.arrayElementVarHandle(long[].class);
+
+        // Total min/max/sum/count cells over all stripes
+        private static final int MAX_CELLS = 1 << 21;
+        private static final int MAX_STRIPES = 16;
+
+        private final int mask;
+        private final long[] tags;
+        private final byte[][] keys;
+        private final long[][] cells;
+        // Slots claimed, and how many may be, so that probes always end at a free slot
+        private final AtomicInteger claimed = new AtomicInteger();
+        private final int claimLimit;
+        // Of each worker, created when it first meets a station that doesn't fit
+        private final StationTable[] overflows;
+
+        SharedStationTable(int capacity, int threads) {
+            mask = capacity - 1;
+            // Each thread may claim one slot past the limit, which still leaves free ones
+            claimLimit = Math.max(0, capacity - capacity / 4 - threads);
+            overflows = new StationTable[threads];
+            tags = new long[capacity];
+            keys = new byte[capacity][];
+            int stripes = Math.min(Math.min(Integer.highestOneBit(threads), MAX_STRIPES), Math.max(1, MAX_CELLS / capacity));
+            cells = new long[stripes][];
+            for (int i = 0; i < stripes; i++) {
+                cells[i] = new long[capacity * 4];
+                for (int j = 0; j < cells[i].length; j += 4) {
+                    cells[i][j] = Long.MAX_VALUE;
+                    cells[i][j + 1] = Long.MIN_VALUE;
+                }
+            }
+        }
+
+        int stripes() {
+            return cells.length;
+        }
+
+        Stations forWorker(int index) {
+            long[] stripe = cells[index & (cells.length - 1)];
+            return new Stations() {
+                @Override
+                void add(MemorySegment data, long nameStart, int nameLength, long hash, int value) {
+                    int slot = slot(data, nameStart, nameLength, hash);
+                    if (slot >= 0) {
+                        update(stripe, slot << 2, value);
+                        return;
+                    }
+                    if (overflows[index] == null) {
+                        overflows[index] = new StationTable(1 << 10);
+                    }
+                    overflows[index].add(data, nameStart, nameLength, hash, value);
+                }
+            };
+        }
+
+        // The slot of the station, or -1 if it isn't in the table and the table is full
+        private int slot(MemorySegment data, long nameStart, int nameLength, long hash) {
+            long tag = hash | 1;
+            int slot = (int) hash & mask;
+            while (true) {
+                long current = (long) TAGS.getAcquire(tags, slot);
+                if (current == 0) {
+                    if (claimed.get() >= claimLimit) {
+                        return -1;
+                    }
+                    if (TAGS.compareAndSet(tags, slot, 0L, tag)) {
+                        claimed.incrementAndGet();
+                        byte[] key = new byte[nameLength];
+                        MemorySegment.copy(data, ValueLayout.JAVA_BYTE, nameStart, key, 0, nameLength);
+                        KEYS.setRelease(keys, slot, key);
+                        return slot;
+                    }
+                    current = (long) TAGS.getAcquire(tags, slot);
+                }
+                if (current == tag) {
+                    byte[] key;
+                    while ((key = (byte[]) KEYS.getAcquire(keys, slot)) == null) {
+                        Thread.onSpinWait();
+                    }
+                    if (key.length == nameLength
+                            && MemorySegment.mismatch(MemorySegment.ofArray(key), 0, nameLength, data, nameStart, nameStart + nameLength) == -1) {
+                        return slot;
+                    }
+                }
+                slot = (slot + 1) & mask;
+            }
+        }
+
+        private static void update(long[] stripe, int cell, int value) {
+            long min;
+            while (value < (min = (long) CELLS.getOpaque(stripe, cell)) && !CELLS.weakCompareAndSet(stripe, cell, min, (long) value)) {
+            }
+            long max;
+            while (value > (max = (long) CELLS.getOpaque(stripe, cell + 1)) && !CELLS.weakCompareAndSet(stripe, cell + 1, max, (long) value)) {
+            }
+            CELLS.getAndAdd(stripe, cell + 2, (long) value);
+            CELLS.getAndAdd(stripe, cell + 3, 1L);
+        }
+
+        // Only once all workers are done
+        void mergeInto(Map<String, long[]> result) {
+            for (int slot = 0; slot < keys.length; slot++) {
+                if (keys[slot] == null) {
+                    continue;
+                }
+                long[] stats = result.computeIfAbsent(new String(keys[slot], StandardCharsets.UTF_8), k -> newStats());
+                int cell = slot << 2;
+                for (long[] stripe : cells) {
+                    stats[0] = Math.min(stats[0], stripe[cell]);
+                    stats[1] = Math.max(stats[1], stripe[cell + 1]);
+                    stats[2] += stripe[cell + 2];
+                    stats[3] += stripe[cell + 3];
+                }
+            }
+            for (StationTable overflow : overflows) {
+                if (overflow != null) {
+                    overflow.mergeInto(result);
+                }
+            }
+        }
+    }
+
+    /**
+     * Parses the rows starting in [pos, limit) into a table of type T: {@link Stations}, or {@link BucketTable}
+     * for timestamped rows. There must be PADDING readable bytes after limit.
+     */
+    abstract static class RowParser<T> {
+        abstract void parse(DelimiterScanner scanner, MemorySegment data, long pos, long limit, T table);
+    }
+
+    // name;-dd.d\n
+    static final class DecimalRowParser extends RowParser<Stations> {
+        @Override
+        void parse(DelimiterScanner scanner, MemorySegment data, long pos, long limit, Stations table) {
+            parseDecimal(scanner, data, pos, limit, table, 1);
+        }
+    }
+
+    // name;-dd.d\r\n
+    static final class DecimalCrLfRowParser extends RowParser<Stations> {
+        @Override
+        void parse(DelimiterScanner scanner, MemorySegment data, long pos, long limit, Stations table) {
+            parseDecimal(scanner, data, pos, limit, table, 2);
+        }
+    }
+
+    // Any other precision: digits are parsed one at a time
+    static final class GenericRowParser extends RowParser<Stations> {
+        private final int precision;
+        private final int lineEndLength;
+
+        GenericRowParser(int precision, int lineEndLength) {
+            this.precision = precision;
+            this.lineEndLength = lineEndLength;
+        }
+
+        @Override
+        void parse(DelimiterScanner scanner, MemorySegment data, long pos, long limit, Stations table) {
+            long windowStart = pos;
+            long delimiters = scanner.scan(data, windowStart);
+            while (pos < limit) {
+                while (delimiters == 0) {
+                    windowStart += Long.SIZE;
+                    delimiters = scanner.scan(data, windowStart);
+                }
+                long delimiter = windowStart + Long.numberOfTrailingZeros(delimiters);
+                delimiters &= delimiters - 1;
+                int nameLength = (int) (delimiter - pos);
+
+                long p = delimiter + 1;
+                boolean negative = data.get(ValueLayout.JAVA_BYTE, p) == '-';
+                if (negative) {
+                    p++;
+                }
+                int value = 0;
+                byte b;
+                // '.', '\r' and '\n' all sort before '0'
+                while ((b = data.get(ValueLayout.JAVA_BYTE, p)) >= '0') {
+                    value = value * 10 + (b - '0');
+                    p++;
+                }
+                if (precision > 0) {
+                    p++;
+                    for (int i = 0; i < precision; i++) {
+                        value = value * 10 + (data.get(ValueLayout.JAVA_BYTE, p++) - '0');
+                    }
+                }
+
+                table.add(data, pos, nameLength, hash(data, pos, delimiter, nameLength), negative ? -value : value);
+                pos = p + lineEndLength;
+            }
+        }
+    }
+
+    // name;epoch;-dd.d\n (or \r\n)
+    static final class TimestampedRowParser extends RowParser<BucketTable> {
+        private final int lineEndLength;
+
+        TimestampedRowParser(int lineEndLength) {
+            this.lineEndLength = lineEndLength;
+        }
+
+        @Override
+        void parse(DelimiterScanner scanner, MemorySegment data, long pos, long limit, BucketTable table) {
+            long windowStart = pos;
+            long delimiters = scanner.scan(data, windowStart);
+            while (pos < limit) {
+                // Two delimiters per row, the lowest bits left are the ones of this row
+                while (delimiters == 0) {
+                    windowStart += Long.SIZE;
+                    delimiters = scanner.scan(data, windowStart);
+                }
+                long delimiter = windowStart + Long.numberOfTrailingZeros(delimiters);
+                delimiters &= delimiters - 1;
+                while (delimiters == 0) {
+                    windowStart += Long.SIZE;
+                    delimiters = scanner.scan(data, windowStart);
+                }
+                long secondDelimiter = windowStart + Long.numberOfTrailingZeros(delimiters);
+                delimiters &= delimiters - 1;
+
+                int nameLength = (int) (delimiter - pos);
+                long epochStart = delimiter + 1;
+                boolean negativeEpoch = data.get(ValueLayout.JAVA_BYTE, epochStart) == '-';
+                if (negativeEpoch) {
+                    epochStart++;
+                }
+                long epochSecond = parseDigits(data, epochStart, (int) (secondDelimiter - epochStart));
+                if (epochSecond < 0) {
+                    throw new IllegalStateException("Bad timestamp in the row at offset " + pos);
+                }
+                if (negativeEpoch) {
+                    epochSecond = -epochSecond;
+                }
+
+                // Temperature, see CalculateAverage_merykitty
+                long word = data.get(LONG_LE, secondDelimiter + 1);
+                int dotPosition = Long.numberOfTrailingZeros(~word & 0x10101000);
+                long signed = (~word << 59) >> 63;
+                long designMask = ~(signed & 0xFF);
+                long digits = ((word & designMask) << (28 - dotPosition)) & 0x0F000F0F00L;
+                long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+                int value = (int) ((absValue ^ signed) - signed);
+
+                table.add(data, pos, nameLength, hash(data, pos, delimiter, nameLength), epochSecond, value);
+                pos = secondDelimiter + 1 + (dotPosition >>> 3) + 2 + lineEndLength;
+            }
+        }
+    }
+
+    private static final long ZEROS = 0x3030303030303030L;
+
+    /**
+     * Parses 1 to 16 decimal digits, or returns -1 if there are none, more than 16, or a byte that isn't
+     * a digit. There must be 8 readable bytes at start.
+     */
+    static long parseDigits(MemorySegment data, long start, int length) {
+        if (length < 1 || length > 16) {
+            return -1;
+        }
+        if (length <= 8) {
+            // Bytes after the digits are shifted out, leading zeros in
+            long digits = (data.get(LONG_LE, start) ^ ZEROS) << ((8 - length) << 3);
+            return isDigits(digits) ? parseEightDigits(digits) : -1;
+        }
+        long high = (data.get(LONG_LE, start) ^ ZEROS) << ((16 - length) << 3);
+        long low = data.get(LONG_LE, start + length - 8) ^ ZEROS;
+        return isDigits(high) && isDigits(low) ? parseEightDigits(high) * 100_000_000L + parseEightDigits(low) : -1;
+    }
+
+    // Every byte of a word XORed with ZEROS is 0 to 9. Adding 0x76 sets the high bit of any byte above 9; a carry
+    // out of a byte only happens when that byte already has its high bit set.
+    private static boolean isDigits(long digits) {
+        return ((digits + 0x7676767676767676L | digits) & 0x8080808080808080L) == 0;
+    }
+
+    // Eight digits, the first one in the lowest byte: pairs, then quads, then the whole
+    private static long parseEightDigits(long word) {
+        word = (word & 0x0F0F0F0F0F0F0F0FL) * 2561 >>> 8;
+        word = (word & 0x00FF00FF00FF00FFL) * 6553601 >>> 16;
+        return (word & 0x0000FFFF0000FFFFL) * 42949672960001L >>> 32;
+    }
+
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    // Hash the first and last (up to) 8 bytes of the name. There must be 8 readable bytes at pos.
+    static long hash(MemorySegment data, long pos, long delimiter, int nameLength) {
+        long first = data.get(LONG_LE, pos);
+        if (nameLength < Long.BYTES) {
+            first &= (1L << (nameLength << 3)) - 1;
+        }
+        long last = nameLength > Long.BYTES ? data.get(LONG_LE, delimiter - Long.BYTES) : 0;
+        long hash = (first ^ Long.rotateLeft(last, 29) ^ nameLength) * HASH_MULTIPLIER;
+        return hash ^ hash >>> 32;
+    }
+
+    // One fraction digit. lineEndLength is a constant in each caller, so that both get their own compiled loop.
+    private static void parseDecimal(DelimiterScanner scanner, MemorySegment data, long pos, long limit, Stations table, int lineEndLength) {
+        long windowStart = pos;
+        long delimiters = scanner.scan(data, windowStart);
+        while (pos < limit) {
+            // Every row has exactly one delimiter, so the lowest bit left in the bitmap is the one of this row
+            while (delimiters == 0) {
+                windowStart += Long.SIZE;
+                delimiters = scanner.scan(data, windowStart);
+            }
+            long delimiter = windowStart + Long.numberOfTrailingZeros(delimiters);
+            delimiters &= delimiters - 1;
+            int nameLength = (int) (delimiter - pos);
+            long hash = hash(data, pos, delimiter, nameLength);
+
+            // Temperature, see CalculateAverage_merykitty
+            long word = data.get(LONG_LE, delimiter + 1);
+            int dotPosition = Long.numberOfTrailingZeros(~word & 0x10101000);
+            long signed = (~word << 59) >> 63;
+            long designMask = ~(signed & 0xFF);
+            long digits = ((word & designMask) << (28 - dotPosition)) & 0x0F000F0F00L;
+            long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+            int value = (int) ((absValue ^ signed) - signed);
+
+            table.add(data, pos, nameLength, hash, value);
+            pos = delimiter + 1 + (dotPosition >>> 3) + 2 + lineEndLength;
+        }
+    }
+
+    /**
+     * A line-aligned range of one of the input files.
+     */
+    record Segment(MemorySegment data, long start, long end) {
+    }
+
+    /**
+     * A block of a block gzip file, holding whole rows.
+     */
+    record CompressedBlock(MemorySegment file, Block block) {
+    }
+
+    /**
+     * Expands the inputs to the files to read: a file as is, the regular files of a directory, or the files
+     * matching a glob relative to its directory part. Directories and globs are expanded in path order.
+     */
+    static List<Path> inputFiles(List<String> inputs) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (String input : inputs) {
+            int glob = 0;
+            while (glob < input.length() && "*?[{".indexOf(input.charAt(glob)) < 0) {
+                glob++;
+            }
+            Path path = Path.of(input);
+            if (glob < input.length()) {
+                int slash = input.lastIndexOf('/', glob);
+                Path base = Path.of(slash < 0 ? "." : input.substring(0, slash + 1));
+                PathMatcher matcher = base.getFileSystem().getPathMatcher("glob:" + input.substring(slash + 1));
+                try (Stream<Path> paths = Files.walk(base)) {
+                    paths.filter(Files::isRegularFile).filter(p -> matcher.matches(base.relativize(p))).sorted().forEach(files::add);
+                }
+            }
+            else if (Files.isDirectory(path)) {
+                try (Stream<Path> paths = Files.list(path)) {
+                    paths.filter(Files::isRegularFile).sorted().forEach(files::add);
+                }
+            }
+            else {
+                files.add(path);
+            }
+        }
+        if (files.isEmpty()) {
+            throw new IllegalArgumentException("No input files in " + inputs);
+        }
+        return files;
+    }
+
+    // Cuts the rows in [start, end), which is line-aligned, into segments of about segmentSize bytes
+    static void addSegments(List<Segment> segments, MemorySegment data, long start, long end, long segmentSize) {
+        while (start < end) {
+            long segmentEnd = Math.min(end, nextLineStart(data, Math.min(end, start + segmentSize)));
+            segments.add(new Segment(data, start, segmentEnd));
+            start = segmentEnd;
+        }
+    }
+
+    static long nextLineStart(MemorySegment data, long offset) {
+        long size = data.byteSize();
+        while (offset < size && data.get(ValueLayout.JAVA_BYTE, offset - 1) != '\n') {
+            offset++;
+        }
+        return Math.min(offset, size);
+    }
+
+    // Parses the rows of the segment that have PADDING bytes after them in the file, returns where the others start
+    static <T> long processMapped(RowParser<T> parser, DelimiterScanner scanner, Segment segment, T table) {
+        MemorySegment data = segment.data();
+        long start = segment.start();
+        long fastLimit = Math.min(segment.end(), data.byteSize() - PADDING);
+        if (start < fastLimit) {
+            parser.parse(scanner, data, start, fastLimit, table);
+            // The fast loop stops at the first row starting at or after fastLimit
+            start = nextLineStart(data, fastLimit);
+        }
+        return start;
+    }
+
+    // Inflates the block into buffer, which has PADDING bytes to spare, and parses the rows there
+    private static <T> void processCompressed(RowParser<T> parser, DelimiterScanner scanner, Dialect dialect, CompressedBlock compressed,
+                                              Inflater inflater, MemorySegment buffer, T table) {
+        Block block = compressed.block();
+        inflater.reset();
+        inflater.setInput(compressed.file().asSlice(block.dataOffset(), block.dataSize()).asByteBuffer());
+        // One more byte than expected, so that inflate can always get to the end of the stream
+        ByteBuffer out = buffer.asByteBuffer().limit(block.inflatedSize() + 1);
+        try {
+            while (!inflater.finished()) {
+                if (inflater.inflate(out) == 0 && (inflater.needsInput() || !out.hasRemaining())) {
+                    break;
+                }
+            }
+        }
+        catch (DataFormatException e) {
+            throw new IllegalStateException("Corrupt block at offset " + block.offset(), e);
+        }
+        if (!inflater.finished() || out.position() != block.inflatedSize()) {
+            throw new IllegalStateException("Corrupt block at offset " + block.offset());
+        }
+        CRC32 crc = new CRC32();
+        crc.update(buffer.asSlice(0, block.inflatedSize()).asByteBuffer());
+        if ((int) crc.getValue() != BlockGzip.crc32(compressed.file(), block)) {
+            throw new IllegalStateException("Corrupt block at offset " + block.offset() + ": CRC32 mismatch");
+        }
+
+        long start = block.offset() == 0 ? dialect.dataStart(buffer.asSlice(0, block.inflatedSize())) : 0;
+        parser.parse(scanner, buffer, start, block.inflatedSize(), table);
+    }
+
+    // Parses the rows from a padded copy
+    static <T> void processTail(RowParser<T> parser, DelimiterScanner scanner, Segment tail, T table) {
+        int length = (int) (tail.end() - tail.start());
+        byte[] copy = new byte[length + PADDING];
+        MemorySegment.copy(tail.data(), ValueLayout.JAVA_BYTE, tail.start(), copy, 0, length);
+        parser.parse(scanner, MemorySegment.ofArray(copy), 0, length, table);
+    }
+
+    /**
+     * Runs each on its own platform thread and waits for all of them. If any of them throws, the first
+     * failure is rethrown once all are done, so that a lost segment or block can't go unnoticed.
+     */
+    static void runWorkers(Runnable[] work) throws InterruptedException {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread[] workers = new Thread[work.length];
+        for (int i = 0; i < work.length; i++) {
+            workers[i] = Thread.ofPlatform().uncaughtExceptionHandler((thread, e) -> failure.compareAndSet(null, e)).start(work[i]);
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException("A worker failed", failure.get());
+        }
+    }
+
+    /**
+     * Aggregates the line-aligned rows in [start, end) of data with a thread for each of the tables. Used by
+     * {@link AggregationWorker_albertoventurini_adaptive} for the ranges it is sent. Throws if any of the
+     * threads failed, as the range is then only partly counted.
+     */
+    static void aggregateRange(RowParser<Stations> parser, DelimiterScanner scanner, MemorySegment data, long start, long end, Stations[] tables)
+            throws InterruptedException {
+        List<Segment> segments = new ArrayList<>();
+        addSegments(segments, data, start, end, Math.clamp((end - start) / tables.length / 8, MIN_SEGMENT_SIZE, MAX_SEGMENT_SIZE));
+        AtomicInteger nextSegment = new AtomicInteger();
+        Runnable[] work = new Runnable[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            Stations table = tables[i];
+            work[i] = () -> {
+                List<Segment> tails = new ArrayList<>();
+                int next;
+                while ((next = nextSegment.getAndIncrement()) < segments.size()) {
+                    Segment segment = segments.get(next);
+                    long tailStart = processMapped(parser, scanner, segment, table);
+                    if (tailStart < segment.end()) {
+                        tails.add(new Segment(segment.data(), tailStart, segment.end()));
+                    }
+                }
+                for (Segment tail : tails) {
+                    processTail(parser, scanner, tail, table);
+                }
+            };
+        }
+        runWorkers(work);
+    }
+
+    /**
+     * Maps an input file for reading. The daemon, {@link AggregationServer_albertoventurini_adaptive}, keeps
+     * the mappings of unchanged files across requests.
+     */
+    interface FileMapper {
+        MemorySegment map(Path path) throws IOException;
+    }
+
+    // In an automatic arena: Inflater doesn't take buffers of closeable shared arenas, and the daemon must
+    // not keep the mappings of every request
+    static MemorySegment mapFile(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), Arena.ofAuto());
+        }
+    }
+
+    /**
+     * Returns the file named by an option that reads one (e.g. --catalog=FILE), or null.
+     */
+    static String optionFile(String arg) {
+        for (String option : List.of("--catalog=", "--include-stations=", "--exclude-stations=")) {
+            if (arg.startsWith(option)) {
+                return arg.substring(option.length());
+            }
+        }
+        return null;
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(args, System.out, CalculateAverage_albertoventurini_adaptive::mapFile);
+    }
+
+    /**
+     * Runs the query given by the command line arguments over the files, printing the result to out.
+     */
+    static void run(String[] args, PrintStream out, FileMapper mapper) throws Exception {
+        boolean verbose = false;
+        boolean sharedTable = false;
+        double[] quantiles = null;
+        boolean stddev = false;
+        Catalog catalog = null;
+        StationFilter stationFilter = null;
+        String minTemperature = null;
+        String maxTemperature = null;
+        int topK = 0;
+        boolean highest = true;
+        RankBy rankBy = RankBy.MEAN;
+        long bucketSeconds = 0;
+        Path cacheDirectory = null;
+        long cacheBlockSize = 64L << 20;
+        double samplePercent = 0;
+        String maxError = null;
+        Long seed = null;
+        List<String> inputs = new ArrayList<>();
+        Dialect d = Dialect.DEFAULT;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.equals("--verbose")) {
+                verbose = true;
+            }
+            else if (arg.equals("--shared-table")) {
+                sharedTable = true;
+            }
+            else if (arg.equals("--stddev")) {
+                stddev = true;
+            }
+            else if (arg.startsWith("--catalog=")) {
+                catalog = new Catalog(Path.of(value));
+            }
+            else if (arg.startsWith("--include-stations=") || arg.startsWith("--exclude-stations=")) {
+                if (stationFilter != null) {
+                    throw new IllegalArgumentException("Only one of --include-stations and --exclude-stations can be given");
+                }
+                stationFilter = new StationFilter(Path.of(value), arg.startsWith("--include-stations="));
+            }
+            else if (arg.startsWith("--top=") || arg.startsWith("--bottom=")) {
+                topK = Integer.parseInt(value);
+                highest = arg.startsWith("--top=");
+                if (topK <= 0) {
+                    throw new IllegalArgumentException("K must be positive: " + arg);
+                }
+            }
+            else if (arg.startsWith("--timestamps=")) {
+                bucketSeconds = switch (value) {
+                    case "hour" -> 3600;
+                    case "day" -> 86_400;
+                    default -> throw new IllegalArgumentException("Buckets are hour or day: " + arg);
+                };
+            }
+            else if (arg.startsWith("--block-cache=")) {
+                cacheDirectory = Path.of(value);
+            }
+            else if (arg.startsWith("--cache-block-size=")) {
+                cacheBlockSize = Long.parseLong(value) << 20;
+                if (cacheBlockSize <= 0 || cacheBlockSize > 1L << 30) {
+                    throw new IllegalArgumentException("The cache block size must be between 1 and 1024 MB: " + arg);
+                }
+            }
+            else if (arg.startsWith("--sample=")) {
+                samplePercent = Double.parseDouble(value);
+                if (!(samplePercent > 0 && samplePercent <= 100)) {
+                    throw new IllegalArgumentException("The sample percentage must be in (0, 100]: " + arg);
+                }
+            }
+            else if (arg.startsWith("--max-error=")) {
+                maxError = value;
+            }
+            else if (arg.startsWith("--seed=")) {
+                seed = Long.parseLong(value);
+            }
+            else if (arg.startsWith("--by=")) {
+                rankBy = RankBy.valueOf(value.toUpperCase(Locale.ROOT));
+            }
+            else if (arg.startsWith("--min-temperature=")) {
+                minTemperature = value;
+            }
+            else if (arg.startsWith("--max-temperature=")) {
+                maxTemperature = value;
+            }
+            else if (arg.startsWith("--percentiles=")) {
+                quantiles = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+                for (double q : quantiles) {
+                    if (!(q > 0 && q <= 100)) {
+                        throw new IllegalArgumentException("Percentiles must be in (0, 100]: " + q);
+                    }
+                }
+            }
+            else if (d.withOption(arg) != null) {
+                d = d.withOption(arg);
+            }
+            else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else {
+                inputs.add(arg);
+            }
+        }
+        Dialect dialect = d;
+        // Readings are compared in units of the last digit; the bounds are rounded inwards
+        int minValue = minTemperature == null ? Integer.MIN_VALUE
+                : new BigDecimal(minTemperature).movePointRight(dialect.precision()).setScale(0, RoundingMode.CEILING).intValueExact();
+        int maxValue = maxTemperature == null ? Integer.MAX_VALUE
+                : new BigDecimal(maxTemperature).movePointRight(dialect.precision()).setScale(0, RoundingMode.FLOOR).intValueExact();
+        Query query = new Query(quantiles != null ? dialect.maxReading() : 0, stddev, catalog, stationFilter, minValue, maxValue);
+        if (sharedTable && (!query.isAll() || topK > 0)) {
+            throw new IllegalArgumentException("--shared-table can't be combined with percentiles, stddev, catalogs, filters or top-K");
+        }
+        if (topK > 0 && quantiles != null) {
+            throw new IllegalArgumentException("--percentiles can't be combined with --top or --bottom");
+        }
+        if (bucketSeconds != 0 && (sharedTable || !query.isAll() || topK > 0 || dialect.precision() != 1)) {
+            throw new IllegalArgumentException("--timestamps only supports plain aggregation of one fraction digit");
+        }
+        if (cacheDirectory != null && (sharedTable || !query.isAll() || topK > 0 || bucketSeconds != 0)) {
+            throw new IllegalArgumentException("--block-cache only supports plain aggregation");
+        }
+        if (samplePercent == 0 && (maxError != null || seed != null)) {
+            throw new IllegalArgumentException("--max-error and --seed only apply to --sample");
+        }
+        if (samplePercent != 0 && (sharedTable || !query.isAll() || topK > 0 || bucketSeconds != 0 || cacheDirectory != null)) {
+            throw new IllegalArgumentException("--sample only supports plain aggregation");
+        }
+
+        List<Path> files = inputFiles(inputs.isEmpty() ? List.of(FILE) : inputs);
+
+        List<MemorySegment> mapped = new ArrayList<>();
+        List<Path> mappedPaths = new ArrayList<>();
+        List<CompressedBlock> blocks = new ArrayList<>();
+        // Of the rows, once inflated
+        long size = 0;
+        int maxBlockSize = 0;
+        MemorySegment largest = null;
+        for (Path path : files) {
+            MemorySegment data = mapper.map(path);
+            if (BlockGzip.isBlockGzip(data)) {
+                for (Block block : BlockGzip.index(data)) {
+                    blocks.add(new CompressedBlock(data, block));
+                    size += block.inflatedSize();
+                    maxBlockSize = Math.max(maxBlockSize, block.inflatedSize());
+                }
+                continue;
+            }
+            mapped.add(data);
+            mappedPaths.add(path);
+            size += data.byteSize();
+            if (largest == null || data.byteSize() > largest.byteSize()) {
+                largest = data;
+            }
+        }
+
+        DelimiterScanner scanner = calibrate(candidates(dialect.delimiter()), largest != null ? largest : MemorySegment.ofArray(new byte[0]), verbose);
+        RowParser<Stations> parser = dialect.rowParser();
+
+        int threads = size < 1 << 20 ? 1 : Runtime.getRuntime().availableProcessors();
+        long segmentSize = Math.clamp(size / threads / 8, MIN_SEGMENT_SIZE, MAX_SEGMENT_SIZE);
+        if (samplePercent != 0) {
+            if (!blocks.isEmpty()) {
+                throw new IllegalArgumentException("--sample doesn't read block gzip files");
+            }
+            double error = maxError == null ? 0 : new BigDecimal(maxError).movePointRight(dialect.precision()).doubleValue();
+            Sampler_albertoventurini_adaptive sampler = new Sampler_albertoventurini_adaptive(samplePercent / 100, error,
+                    seed != null ? seed : System.nanoTime());
+            sampler.print(sampler.aggregate(mapped, dialect, parser, scanner, threads), dialect, out);
+            return;
+        }
+        // The cached stations of the text files, which are then left out of the segments
+        Map<String, long[]> cached = null;
+        if (cacheDirectory != null) {
+            cached = new BlockCache_albertoventurini_adaptive(cacheDirectory, cacheBlockSize, verbose).aggregate(mappedPaths, mapped, dialect, parser, scanner, threads);
+            mapped.clear();
+        }
+        List<Segment> segments = new ArrayList<>();
+        for (MemorySegment data : mapped) {
+            addSegments(segments, data, dialect.dataStart(data), data.byteSize(), segmentSize);
+        }
+        long bufferSize = maxBlockSize + PADDING;
+        if (bucketSeconds != 0) {
+            BucketTable[] buckets = new BucketTable[threads];
+            for (int i = 0; i < threads; i++) {
+                buckets[i] = new BucketTable(bucketSeconds);
+            }
+            parseAll(new TimestampedRowParser(dialect.lineEndLength()), scanner, dialect, blocks, segments, bufferSize, buckets);
+            printBuckets(buckets, dialect, out);
+            return;
+        }
+        SharedStationTable shared = sharedTable ? new SharedStationTable(StationTable.DEFAULT_CAPACITY, threads) : null;
+        Stations[] tables = new Stations[threads];
+        for (int i = 0; i < threads; i++) {
+            tables[i] = shared != null ? shared.forWorker(i) : new StationTable(StationTable.DEFAULT_CAPACITY, query);
+        }
+        parseAll(parser, scanner, dialect, blocks, segments, bufferSize, tables);
+
+        // In rank order for top-K
+        Map<String, long[]> result = topK > 0 ? new LinkedHashMap<>() : new TreeMap<>();
+        if (cached != null) {
+            result.putAll(cached);
+        }
+        Map<String, List<Histogram>> histograms = quantiles != null ? new HashMap<>() : null;
+        long[][][] groupStats = null;
+        if (catalog != null) {
+            groupStats = new long[catalog.levels.length][][];
+            for (int level = 0; level < groupStats.length; level++) {
+                groupStats[level] = new long[catalog.groupCount(level)][];
+            }
+        }
+        for (int i = 0; i < threads; i++) {
+            if (shared == null && topK == 0) {
+                ((StationTable) tables[i]).mergeInto(result, histograms);
+            }
+            if (groupStats != null) {
+                ((StationTable) tables[i]).rollUpInto(groupStats);
+            }
+        }
+        if (shared != null) {
+            shared.mergeInto(result);
+        }
+
+        Map<String, long[]> percentiles = new ConcurrentHashMap<>();
+        if (histograms != null) {
+            double[] q = quantiles;
+            histograms.entrySet().parallelStream().forEach(e -> percentiles.put(e.getKey(), Histogram.percentiles(e.getValue(), q)));
+        }
+
+        if (topK > 0) {
+            StationTable[] stationTables = Arrays.copyOf(tables, threads, StationTable[].class);
+            for (Ranked ranked : rank(stationTables, topK, rankBy, highest, stddev)) {
+                result.put(ranked.name(), ranked.stats());
+            }
+        }
+
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, long[]> entry : result.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append('=');
+            appendStats(sb, dialect, entry.getValue(), stddev);
+            if (histograms != null) {
+                for (long percentile : percentiles.get(entry.getKey())) {
+                    sb.append('/').append(dialect.format(percentile));
+                }
+            }
+        }
+        out.println(sb.append('}'));
+
+        // Percentiles are only computed for the stations
+        for (int level = 0; groupStats != null && level < groupStats.length; level++) {
+            Map<String, long[]> groups = new TreeMap<>();
+            for (int groupId = 0; groupId < groupStats[level].length; groupId++) {
+                if (groupStats[level][groupId] != null) {
+                    groups.put(catalog.groupName(level, groupId), groupStats[level][groupId]);
+                }
+            }
+            sb = new StringBuilder(catalog.levels[level]).append(" {");
+            boolean first = true;
+            for (Map.Entry<String, long[]> entry : groups.entrySet()) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(entry.getKey()).append('=');
+                appendStats(sb, dialect, entry.getValue(), stddev);
+            }
+            out.println(sb.append('}'));
+        }
+    }
+
+    /**
+     * Parses the blocks, then the segments, with a worker for each table, each taking the next one off a
+     * shared queue until there are none left.
+     */
+    private static <T> void parseAll(RowParser<T> parser, DelimiterScanner scanner, Dialect dialect, List<CompressedBlock> blocks,
+                                     List<Segment> segments, long bufferSize, T[] tables)
+            throws InterruptedException {
+        AtomicInteger nextWork = new AtomicInteger();
+        int workCount = blocks.size() + segments.size();
+        Runnable[] work = new Runnable[tables.length];
+        for (int i = 0; i < tables.length; i++) {
+            T table = tables[i];
+            work[i] = () -> {
+                List<Segment> tails = new ArrayList<>();
+                Inflater inflater = null;
+                MemorySegment buffer = null;
+                int next;
+                while ((next = nextWork.getAndIncrement()) < workCount) {
+                    if (next < blocks.size()) {
+                        if (inflater == null) {
+                            inflater = new Inflater(true);
+                            buffer = Arena.ofAuto().allocate(bufferSize);
+                        }
+                        processCompressed(parser, scanner, dialect, blocks.get(next), inflater, buffer, table);
+                        continue;
+                    }
+                    Segment segment = segments.get(next - blocks.size());
+                    long tailStart = processMapped(parser, scanner, segment, table);
+                    if (tailStart < segment.end()) {
+                        tails.add(new Segment(segment.data(), tailStart, segment.end()));
+                    }
+                }
+                if (inflater != null) {
+                    inflater.end();
+                }
+                // Last, as parsing a heap segment would make the compiled loops slower for mapped ones
+                for (Segment tail : tails) {
+                    processTail(parser, scanner, tail, table);
+                }
+            };
+        }
+        runWorkers(work);
+    }
+
+    // {station={bucket start=min/mean/max, ...}, ...}, buckets in time order
+    private static void printBuckets(BucketTable[] tables, Dialect dialect, PrintStream out) {
+        Map<String, Map<Long, long[]>> result = new TreeMap<>();
+        for (BucketTable table : tables) {
+            table.mergeInto(result);
+        }
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, Map<Long, long[]>> station : result.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            sb.append(station.getKey()).append("={");
+            boolean first = true;
+            for (Map.Entry<Long, long[]> bucket : station.getValue().entrySet()) {
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(Instant.ofEpochSecond(bucket.getKey())).append('=');
+                appendStats(sb, dialect, bucket.getValue(), false);
+            }
+            sb.append('}');
+        }
+        out.println(sb.append('}'));
+    }
+
+    static void appendStats(StringBuilder sb, Dialect dialect, long[] stats, boolean stddev) {
+        sb.append(dialect.format(stats[0])).append('/')
+                .append(dialect.format(Math.round((double) stats[2] / stats[3]))).append('/')
+                .append(dialect.format(stats[1]));
+        if (stddev) {
+            sb.append('/').append(dialect.format(stddev(stats)));
+        }
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Aggregates a file converted by {@link BinaryMeasurements}: there are no names to find, hash or compare
+ * and no temperatures to parse, each record is a station ID indexing the stats arrays and a reading.
+ * <p>
+ * The records are split evenly between the threads, each with its own arrays, which are then summed up.
+ * As the IDs are in name order, the result is printed by walking them.
+ * <p>
+ * Usage: [file, ./measurements.bin by default]
+ */
+public class CalculateAverage_albertoventurini_binary {
+
+    // Per thread, indexed by station ID
+    private static final class Stats {
+        final int[] min;
+        final int[] max;
+        final long[] sum;
+        final long[] count;
+
+        Stats(int stations) {
+            min = new int[stations];
+            max = new int[stations];
+            sum = new long[stations];
+            count = new long[stations];
+            Arrays.fill(min, Integer.MAX_VALUE);
+            Arrays.fill(max, Integer.MIN_VALUE);
+        }
+
+        void add(Stats other) {
+            for (int id = 0; id < min.length; id++) {
+                min[id] = Math.min(min[id], other.min[id]);
+                max[id] = Math.max(max[id], other.max[id]);
+                sum[id] += other.sum[id];
+                count[id] += other.count[id];
+            }
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Path file = Path.of(args.length > 0 ? args[0] : "./measurements.bin");
+        try (Arena arena = Arena.ofShared(); FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MemorySegment data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            BinaryMeasurements.Header header = BinaryMeasurements.header(data);
+            int stations = header.names().length;
+
+            int threads = header.rows() < 1 << 18 ? 1 : Runtime.getRuntime().availableProcessors();
+            Stats[] stats = new Stats[threads];
+            Thread[] workers = new Thread[threads];
+            for (int i = 0; i < threads; i++) {
+                long firstRow = header.rows() * i / threads;
+                long lastRow = header.rows() * (i + 1) / threads;
+                long start = header.dataOffset() + firstRow * header.recordSize();
+                long end = header.dataOffset() + lastRow * header.recordSize();
+                Stats s = stats[i] = new Stats(stations);
+                workers[i] = Thread.ofPlatform().start(() -> {
+                    if (header.recordSize() == BinaryMeasurements.SMALL_RECORD_SIZE) {
+                        aggregateSmall(data, start, end, s);
+                    }
+                    else {
+                        aggregateLarge(data, start, end, s);
+                    }
+                });
+            }
+            for (Thread worker : workers) {
+                worker.join();
+            }
+            for (int i = 1; i < threads; i++) {
+                stats[0].add(stats[i]);
+            }
+
+            Stats result = stats[0];
+            StringBuilder sb = new StringBuilder(stations * 32).append('{');
+            for (int id = 0; id < stations; id++) {
+                if (result.count[id] == 0) {
+                    continue;
+                }
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(header.names()[id]).append('=')
+                        .append(result.min[id] / 10.0).append('/')
+                        .append(Math.round((double) result.sum[id] / result.count[id]) / 10.0).append('/')
+                        .append(result.max[id] / 10.0);
+            }
+            System.out.println(sb.append('}'));
+        }
+    }
+
+    // u16 ID in the low half of the record, i16 reading in the high half
+    private static void aggregateSmall(MemorySegment data, long start, long end, Stats s) {
+        int[] min = s.min;
+        int[] max = s.max;
+        long[] sum = s.sum;
+        long[] count = s.count;
+        for (long offset = start; offset < end; offset += BinaryMeasurements.SMALL_RECORD_SIZE) {
+            int record = data.get(BinaryMeasurements.INT_LE, offset);
+            int id = record & 0xFFFF;
+            int value = record >> 16;
+            min[id] = Math.min(min[id], value);
+            max[id] = Math.max(max[id], value);
+            sum[id] += value;
+            count[id]++;
+        }
+    }
+
+    private static void aggregateLarge(MemorySegment data, long start, long end, Stats s) {
+        int[] min = s.min;
+        int[] max = s.max;
+        long[] sum = s.sum;
+        long[] count = s.count;
+        for (long offset = start; offset < end; offset += BinaryMeasurements.LARGE_RECORD_SIZE) {
+            int id = data.get(BinaryMeasurements.INT_LE, offset);
+            int value = data.get(BinaryMeasurements.SHORT_LE, offset + 4);
+            min[id] = Math.min(min[id], value);
+            max[id] = Math.max(max[id], value);
+            sum[id] += value;
+            count[id]++;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Answers queries from a {@link ColumnarMeasurements} file. The usual min/mean/max comes from the zone maps
+ * of the index alone, whatever the row count. --percentiles=Q,... (any quantiles, nearest rank like
+ * CalculateAverage_albertoventurini_adaptive) reads one packed reading per station and quantile from the
+ * sorted runs. --station=NAME, repeatable, restricts the result to the given stations, so only their runs
+ * are touched.
+ * <p>
+ * Usage: [--percentiles=Q,...] [--station=NAME]... [file, ./measurements.col by default]
+ */
+public class CalculateAverage_albertoventurini_columnar {
+
+    public static void main(String[] args) throws IOException {
+        double[] quantiles = new double[0];
+        Set<String> selected = new HashSet<>();
+        Path file = Path.of("./measurements.col");
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--percentiles=")) {
+                quantiles = Arrays.stream(value.split(",")).mapToDouble(Double::parseDouble).toArray();
+                for (double q : quantiles) {
+                    if (!(q > 0 && q <= 100)) {
+                        throw new IllegalArgumentException("Percentiles must be in (0, 100]: " + q);
+                    }
+                }
+            }
+            else if (arg.startsWith("--station=")) {
+                selected.add(value);
+            }
+            else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else {
+                file = Path.of(arg);
+            }
+        }
+
+        try (Arena arena = Arena.ofConfined(); FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            MemorySegment data = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena);
+            List<ColumnarMeasurements.Station> stations = ColumnarMeasurements.stations(data);
+
+            StringBuilder sb = new StringBuilder(stations.size() * 32).append('{');
+            for (ColumnarMeasurements.Station station : stations) {
+                if (station.count() == 0 || (!selected.isEmpty() && !selected.contains(station.name()))) {
+                    continue;
+                }
+                if (sb.length() > 1) {
+                    sb.append(", ");
+                }
+                sb.append(station.name()).append('=')
+                        .append(station.min() / 10.0).append('/')
+                        .append(Math.round((double) station.sum() / station.count()) / 10.0).append('/')
+                        .append(station.max() / 10.0);
+                for (double q : quantiles) {
+                    long rank = Math.max(1, (long) Math.ceil(q / 100 * station.count()));
+                    sb.append('/').append(station.reading(data, rank - 1) / 10.0);
+                }
+            }
+            System.out.println(sb.append('}'));
+        }
+    }
+}
@@ -0,0 +1,548 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.TreeMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.DelimiterScanner;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Dialect;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.RowParser;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Segment;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Stations;
+
+/**
+ * An engine for inputs with more distinct stations than fit in memory (e.g. device IDs), where the fixed
+ * tables of the other engines fill up. Rows are parsed by the scanners and parsers of
+ * CalculateAverage_albertoventurini_adaptive into a growable table per thread.
+ * <p>
+ * == Spilling ==
+ * When a thread's table would take more than its share of --memory-limit MB (half the heap by default), its
+ * stations are written to a run file, grouped into --partitions partitions by name hash, and the table is
+ * cleared. The run file starts with the offsets of its partitions, so that each one can be read alone.
+ * If no table spilled, the tables are merged in memory like in the adaptive engine.
+ * == Partitions ==
+ * Otherwise the remaining stations are spilled too, and each partition is aggregated on its own from its part
+ * of every run, into a table of its stations only. A station always falls into the same partition, so its
+ * aggregate is complete there; it is written to a partition file in name order. As many partitions are
+ * aggregated at once as the memory limit allows, by their spilled size. Last, the partition files are
+ * merged by name with a heap and the result is streamed out.
+ * <p>
+ * Spill files go to a temporary directory under --spill-dir (java.io.tmpdir by default) and are deleted at
+ * the end. A partition with more stations than fit in memory still has to be aggregated in one piece, so
+ * inputs with billions of stations need more --partitions.
+ * <p>
+ * Usage: [--memory-limit=MB] [--partitions=N, 256 by default] [--spill-dir=DIR] [--verbose] [--delimiter=C]
+ * [--precision=N] [--header-lines=N] [--comment=C] [--crlf] [file | directory | glob]...
+ */
+public class CalculateAverage_albertoventurini_external {
+
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    // Name length, min, max, sum and count, followed by the name
+    private static final int RECORD_HEADER_SIZE = 4 + 4 + 4 + 8 + 8;
+    // Of a station in a table besides its name: map slots and entry arrays, and the stats
+    private static final int ENTRY_SIZE = 64;
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+    private static final int DEFAULT_PARTITIONS = 256;
+
+    private static final long MIN_SEGMENT_SIZE = 1 << 20;
+    private static final long MAX_SEGMENT_SIZE = 16 << 20;
+
+    /**
+     * The runs written so far, in a directory of their own.
+     */
+    static final class Spill {
+        final Path directory;
+        final int partitions;
+        final List<Path> runs = new ArrayList<>();
+
+        Spill(Path directory, int partitions) {
+            this.directory = directory;
+            this.partitions = partitions;
+        }
+
+        Path newRun() {
+            synchronized (runs) {
+                Path run = directory.resolve("run-" + runs.size());
+                runs.add(run);
+                return run;
+            }
+        }
+
+        int partition(int hash) {
+            return (int) (((hash * 0x9E3779B9) & 0xFFFFFFFFL) * partitions >>> 32);
+        }
+    }
+
+    /**
+     * Per-thread table of the stations seen since the last spill, keyed by a {@link ByteKeyHashMap}.
+     */
+    static final class SpillingTable extends Stations {
+        private final ByteKeyHashMap stations = new ByteKeyHashMap(1 << 12);
+        private int[] mins = new int[1 << 12];
+        private int[] maxs = new int[mins.length];
+        private long[] sums = new long[mins.length];
+        private int[] counts = new int[mins.length];
+        private long nameBytes;
+
+        private final long budget;
+        private final Spill spill;
+        boolean spilled;
+
+        SpillingTable(long budget, Spill spill) {
+            this.budget = budget;
+            this.spill = spill;
+        }
+
+        @Override
+        void add(MemorySegment data, long nameStart, int nameLength, long hash, int value) {
+            int size = stations.size();
+            int index = stations.put(data, nameStart, nameLength, (int) hash);
+            if (index < size) {
+                mins[index] = Math.min(mins[index], value);
+                maxs[index] = Math.max(maxs[index], value);
+                sums[index] += value;
+                counts[index]++;
+                return;
+            }
+            if (index == mins.length) {
+                mins = Arrays.copyOf(mins, index * 2);
+                maxs = Arrays.copyOf(maxs, index * 2);
+                sums = Arrays.copyOf(sums, index * 2);
+                counts = Arrays.copyOf(counts, index * 2);
+            }
+            mins[index] = value;
+            maxs[index] = value;
+            sums[index] = value;
+            counts[index] = 1;
+            nameBytes += nameLength;
+            if ((long) stations.size() * ENTRY_SIZE + nameBytes > budget) {
+                spill();
+            }
+        }
+
+        /**
+         * Writes the stations to a new run, grouped by partition, and clears the table.
+         */
+        void spill() {
+            int size = stations.size();
+            if (size == 0) {
+                return;
+            }
+            int partitions = spill.partitions;
+            int[] partitionOf = new int[size];
+            // Byte offsets of the partitions in the run, then of its end
+            long[] offsets = new long[partitions + 1];
+            for (int i = 0; i < size; i++) {
+                partitionOf[i] = spill.partition(stations.keyHash(i));
+                offsets[partitionOf[i] + 1] += RECORD_HEADER_SIZE + stations.keyLength(i);
+            }
+            offsets[0] = (long) (partitions + 1) * Long.BYTES;
+            for (int p = 0; p < partitions; p++) {
+                offsets[p + 1] += offsets[p];
+            }
+            // Entries in partition order
+            int[] starts = new int[partitions + 1];
+            for (int i = 0; i < size; i++) {
+                starts[partitionOf[i] + 1]++;
+            }
+            for (int p = 0; p < partitions; p++) {
+                starts[p + 1] += starts[p];
+            }
+            int[] order = new int[size];
+            for (int i = 0; i < size; i++) {
+                order[starts[partitionOf[i]]++] = i;
+            }
+
+            try (RecordWriter out = new RecordWriter(spill.newRun())) {
+                for (long offset : offsets) {
+                    out.buffer(Long.BYTES).putLong(offset);
+                }
+                for (int i : order) {
+                    out.write(stations.key(i), mins[i], maxs[i], sums[i], counts[i]);
+                }
+            }
+            catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            stations.clear();
+            nameBytes = 0;
+            spilled = true;
+        }
+
+        void mergeInto(Map<String, long[]> result) {
+            for (int i = 0; i < stations.size(); i++) {
+                CalculateAverage_albertoventurini_adaptive.addStats(
+                        result.computeIfAbsent(stations.keyString(i), k -> CalculateAverage_albertoventurini_adaptive.newStats()),
+                        mins[i], maxs[i], sums[i], counts[i], 0, 0);
+            }
+        }
+    }
+
+    // Records into a file, little-endian
+    private static final class RecordWriter implements AutoCloseable {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        RecordWriter(Path file) throws IOException {
+            channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        }
+
+        // The buffer, with room for length more bytes
+        ByteBuffer buffer(int length) throws IOException {
+            if (buffer.remaining() < length) {
+                flush();
+            }
+            return buffer;
+        }
+
+        void write(byte[] name, int min, int max, long sum, long count) throws IOException {
+            ByteBuffer b = buffer(RECORD_HEADER_SIZE + name.length);
+            b.putInt(name.length).putInt(min).putInt(max).putLong(sum).putLong(count).put(name);
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try (channel) {
+                flush();
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long memoryLimit = Runtime.getRuntime().maxMemory() / 2;
+        int partitions = DEFAULT_PARTITIONS;
+        Path spillParent = Path.of(System.getProperty("java.io.tmpdir"));
+        boolean verbose = false;
+        Dialect dialect = Dialect.DEFAULT;
+        List<String> inputs = new ArrayList<>();
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--memory-limit=")) {
+                memoryLimit = Long.parseLong(value) << 20;
+            }
+            else if (arg.startsWith("--partitions=")) {
+                partitions = Integer.parseInt(value);
+                if (partitions <= 0) {
+                    throw new IllegalArgumentException("The partition count must be positive: " + arg);
+                }
+            }
+            else if (arg.startsWith("--spill-dir=")) {
+                spillParent = Path.of(value);
+            }
+            else if (arg.equals("--verbose")) {
+                verbose = true;
+            }
+            else if (dialect.withOption(arg) != null) {
+                dialect = dialect.withOption(arg);
+            }
+            else if (arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+            else {
+                inputs.add(arg);
+            }
+        }
+
+        List<MemorySegment> files = new ArrayList<>();
+        long size = 0;
+        MemorySegment largest = MemorySegment.ofArray(new byte[0]);
+        for (Path path : CalculateAverage_albertoventurini_adaptive.inputFiles(inputs.isEmpty() ? List.of(CalculateAverage_albertoventurini_adaptive.FILE) : inputs)) {
+            MemorySegment data = CalculateAverage_albertoventurini_adaptive.mapFile(path);
+            if (BlockGzip.isBlockGzip(data)) {
+                throw new IllegalArgumentException("Block gzip files aren't supported: " + path);
+            }
+            files.add(data);
+            size += data.byteSize();
+            if (data.byteSize() > largest.byteSize()) {
+                largest = data;
+            }
+        }
+        DelimiterScanner scanner = CalculateAverage_albertoventurini_adaptive.calibrate(CalculateAverage_albertoventurini_adaptive.candidates(dialect.delimiter()),
+                largest, verbose);
+        RowParser<Stations> parser = dialect.rowParser();
+
+        int threads = size < 1 << 20 ? 1 : Runtime.getRuntime().availableProcessors();
+        long segmentSize = Math.clamp(size / threads / 8, MIN_SEGMENT_SIZE, MAX_SEGMENT_SIZE);
+        List<Segment> segments = new ArrayList<>();
+        for (MemorySegment data : files) {
+            CalculateAverage_albertoventurini_adaptive.addSegments(segments, data, dialect.dataStart(data), data.byteSize(), segmentSize);
+        }
+
+        Path directory = Files.createTempDirectory(spillParent, "1brc-spill");
+        try {
+            Spill spill = new Spill(directory, partitions);
+            SpillingTable[] tables = new SpillingTable[threads];
+            Runnable[] work = new Runnable[threads];
+            AtomicInteger nextSegment = new AtomicInteger();
+            for (int i = 0; i < threads; i++) {
+                SpillingTable table = tables[i] = new SpillingTable(memoryLimit / threads, spill);
+                work[i] = () -> {
+                    List<Segment> tails = new ArrayList<>();
+                    int next;
+                    while ((next = nextSegment.getAndIncrement()) < segments.size()) {
+                        Segment segment = segments.get(next);
+                        long tailStart = CalculateAverage_albertoventurini_adaptive.processMapped(parser, scanner, segment, table);
+                        if (tailStart < segment.end()) {
+                            tails.add(new Segment(segment.data(), tailStart, segment.end()));
+                        }
+                    }
+                    for (Segment tail : tails) {
+                        CalculateAverage_albertoventurini_adaptive.processTail(parser, scanner, tail, table);
+                    }
+                };
+            }
+            CalculateAverage_albertoventurini_adaptive.runWorkers(work);
+
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false, StandardCharsets.UTF_8);
+            if (Arrays.stream(tables).noneMatch(table -> table.spilled)) {
+                Map<String, long[]> result = new TreeMap<>();
+                for (SpillingTable table : tables) {
+                    table.mergeInto(result);
+                }
+                StringBuilder sb = new StringBuilder("{");
+                for (Map.Entry<String, long[]> entry : result.entrySet()) {
+                    if (sb.length() > 1) {
+                        sb.append(", ");
+                    }
+                    sb.append(entry.getKey()).append('=');
+                    CalculateAverage_albertoventurini_adaptive.appendStats(sb, dialect, entry.getValue(), false);
+                }
+                out.println(sb.append('}'));
+            }
+            else {
+                for (SpillingTable table : tables) {
+                    table.spill();
+                }
+                if (verbose) {
+                    System.err.println("Spilled " + spill.runs.size() + " runs into " + partitions + " partitions");
+                }
+                mergePartitions(aggregatePartitions(spill, memoryLimit, threads), dialect, out);
+            }
+            out.flush();
+        }
+        finally {
+            try (Stream<Path> spilled = Files.list(directory)) {
+                for (Path file : spilled.toList()) {
+                    Files.delete(file);
+                }
+            }
+            Files.delete(directory);
+        }
+    }
+
+    /**
+     * Aggregates each partition from its part of every run and writes its stations in name order to a
+     * partition file. Returns the partition files.
+     */
+    private static Path[] aggregatePartitions(Spill spill, long memoryLimit, int threads) throws IOException, InterruptedException {
+        Path[] partitionFiles = new Path[spill.partitions];
+        try (Arena arena = Arena.ofShared()) {
+            List<MemorySegment> runs = new ArrayList<>();
+            for (Path run : spill.runs) {
+                try (FileChannel channel = FileChannel.open(run, StandardOpenOption.READ)) {
+                    runs.add(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+                }
+            }
+            // The memory of a partition is bounded by twice its records (entry size vs. record size), counted in KB
+            int limitKb = (int) Math.min(Integer.MAX_VALUE, memoryLimit >> 10);
+            Semaphore memory = new Semaphore(limitKb);
+            AtomicInteger nextPartition = new AtomicInteger();
+            Runnable[] work = new Runnable[threads];
+            for (int i = 0; i < threads; i++) {
+                work[i] = () -> {
+                    int p;
+                    while ((p = nextPartition.getAndIncrement()) < spill.partitions) {
+                        long bytes = 0;
+                        for (MemorySegment run : runs) {
+                            bytes += partitionEnd(run, p) - partitionStart(run, p);
+                        }
+                        int permits = (int) Math.min(limitKb, (bytes * 2 >> 10) + 1);
+                        memory.acquireUninterruptibly(permits);
+                        try {
+                            partitionFiles[p] = spill.directory.resolve("partition-" + p);
+                            aggregatePartition(runs, p, partitionFiles[p]);
+                        }
+                        catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                        finally {
+                            memory.release(permits);
+                        }
+                    }
+                };
+            }
+            CalculateAverage_albertoventurini_adaptive.runWorkers(work);
+        }
+        return partitionFiles;
+    }
+
+    private static long partitionStart(MemorySegment run, int partition) {
+        return run.get(LONG_LE, (long) partition * Long.BYTES);
+    }
+
+    private static long partitionEnd(MemorySegment run, int partition) {
+        return run.get(LONG_LE, (long) (partition + 1) * Long.BYTES);
+    }
+
+    private static void aggregatePartition(List<MemorySegment> runs, int partition, Path file) throws IOException {
+        ByteKeyHashMap stations = new ByteKeyHashMap(1 << 12);
+        int[] mins = new int[1 << 12];
+        int[] maxs = new int[mins.length];
+        long[] sums = new long[mins.length];
+        long[] counts = new long[mins.length];
+        for (MemorySegment run : runs) {
+            long end = partitionEnd(run, partition);
+            for (long offset = partitionStart(run, partition); offset < end;) {
+                int nameLength = run.get(INT_LE, offset);
+                long name = offset + RECORD_HEADER_SIZE;
+                int size = stations.size();
+                int index = stations.put(run, name, nameLength, ByteKeyHashMap.hash(run, name, nameLength));
+                int min = run.get(INT_LE, offset + 4);
+                int max = run.get(INT_LE, offset + 8);
+                long sum = run.get(LONG_LE, offset + 12);
+                long count = run.get(LONG_LE, offset + 20);
+                if (index < size) {
+                    mins[index] = Math.min(mins[index], min);
+                    maxs[index] = Math.max(maxs[index], max);
+                    sums[index] += sum;
+                    counts[index] += count;
+                }
+                else {
+                    if (index == mins.length) {
+                        mins = Arrays.copyOf(mins, index * 2);
+                        maxs = Arrays.copyOf(maxs, index * 2);
+                        sums = Arrays.copyOf(sums, index * 2);
+                        counts = Arrays.copyOf(counts, index * 2);
+                    }
+                    mins[index] = min;
+                    maxs[index] = max;
+                    sums[index] = sum;
+                    counts[index] = count;
+                }
+                offset = name + nameLength;
+            }
+        }
+
+        // In the order of the result, which compares names as strings
+        String[] names = new String[stations.size()];
+        Arrays.setAll(names, stations::keyString);
+        int[] order = IntStream.range(0, names.length).boxed().sorted(Comparator.comparing(i -> names[i])).mapToInt(Integer::intValue).toArray();
+        try (RecordWriter out = new RecordWriter(file)) {
+            for (int i : order) {
+                out.write(stations.key(i), mins[i], maxs[i], sums[i], counts[i]);
+            }
+        }
+    }
+
+    // The next station of a partition file
+    private static final class Cursor {
+        final MemorySegment data;
+        long offset;
+        String name;
+        final long[] stats = CalculateAverage_albertoventurini_adaptive.newStats();
+
+        Cursor(MemorySegment data) {
+            this.data = data;
+        }
+
+        boolean next() {
+            if (offset >= data.byteSize()) {
+                return false;
+            }
+            int nameLength = data.get(INT_LE, offset);
+            stats[0] = data.get(INT_LE, offset + 4);
+            stats[1] = data.get(INT_LE, offset + 8);
+            stats[2] = data.get(LONG_LE, offset + 12);
+            stats[3] = data.get(LONG_LE, offset + 20);
+            byte[] bytes = data.asSlice(offset + RECORD_HEADER_SIZE, nameLength).toArray(ValueLayout.JAVA_BYTE);
+            name = new String(bytes, StandardCharsets.UTF_8);
+            offset += RECORD_HEADER_SIZE + nameLength;
+            return true;
+        }
+    }
+
+    /**
+     * Merges the partition files, each in name order, and prints the stations as they come. No station is in
+     * two partitions, so there is nothing to combine.
+     */
+    private static void mergePartitions(Path[] partitionFiles, Dialect dialect, PrintStream out) throws IOException {
+        try (Arena arena = Arena.ofShared()) {
+            PriorityQueue<Cursor> heap = new PriorityQueue<>(Comparator.comparing((Cursor c) -> c.name));
+            for (Path file : partitionFiles) {
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                    Cursor cursor = new Cursor(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+                    if (cursor.next()) {
+                        heap.add(cursor);
+                    }
+                }
+            }
+            out.print('{');
+            StringBuilder sb = new StringBuilder();
+            boolean first = true;
+            while (!heap.isEmpty()) {
+                Cursor cursor = heap.poll();
+                sb.setLength(0);
+                if (!first) {
+                    sb.append(", ");
+                }
+                first = false;
+                sb.append(cursor.name).append('=');
+                CalculateAverage_albertoventurini_adaptive.appendStats(sb, dialect, cursor.stats, false);
+                out.append(sb);
+                if (cursor.next()) {
+                    heap.add(cursor);
+                }
+            }
+            out.println('}');
+        }
+    }
+}
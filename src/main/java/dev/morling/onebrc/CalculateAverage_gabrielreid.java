@@ -47,6 +47,12 @@ public class CalculateAverage_gabrielreid {
     private static final int SUMMARY_TABLE_SIZE = 2048;
     private static final int MAP_INITIAL_SIZE = 450;
 
+    /**
+     * Size of the sub-blocks indexed at once in structural index mode, chosen so that a sub-block and its two
+     * bitmaps stay in L2.
+     */
+    private static final int INDEX_BLOCK_SIZE = 1024 * 64;
+
     /**
      * State with the full summary table, as well as leftover bytes between processed blocks that need to
      * be handled afterward.
@@ -57,10 +63,11 @@ public class CalculateAverage_gabrielreid {
     public static void main(String[] args) throws IOException {
         int numCores = Runtime.getRuntime().availableProcessors();
         int numReadBuffers = numCores + 2;
+        boolean structuralIndex = args.length > 0 && "--structural-index".equals(args[0]);
 
         var blockBuilderQueue = new LinkedBlockingDeque<BlockBuilder>(numReadBuffers);
         for (int i = 0; i < numReadBuffers; i++) {
-            blockBuilderQueue.add(new BlockBuilder(BLOCK_READ_SIZE));
+            blockBuilderQueue.add(new BlockBuilder(BLOCK_READ_SIZE, structuralIndex));
         }
         try (var fjp = new ForkJoinPool(numCores)) {
 
@@ -347,17 +354,27 @@ public class CalculateAverage_gabrielreid {
 
     /**
      * Performs actual building of a SummaryTable from a read buffer.
+     * <p>
+     * In structural index mode, parsing is done in two passes per sub-block (similar to simdjson): the first one
+     * only compares vectors and records the positions of all semicolons and newlines in two bitmaps, the second one
+     * walks the bitmaps to cut the lines, without any searching or data-dependent branching on the bytes.
      */
     static class BlockBuilder {
         final byte[] readBuffer;
         private final SummaryTable summaryTable;
+        private final boolean structuralIndex;
+        private final long[] semicolonBits;
+        private final long[] newlineBits;
 
         private int firstLineStart;
         private int lastLineEnd;
 
-        public BlockBuilder(int readBufferSize) {
+        public BlockBuilder(int readBufferSize, boolean structuralIndex) {
             this.readBuffer = new byte[readBufferSize];
             this.summaryTable = new SummaryTable(SUMMARY_TABLE_SIZE);
+            this.structuralIndex = structuralIndex;
+            this.semicolonBits = structuralIndex ? new long[INDEX_BLOCK_SIZE / Long.SIZE] : null;
+            this.newlineBits = structuralIndex ? new long[INDEX_BLOCK_SIZE / Long.SIZE] : null;
         }
 
         void reset() {
@@ -368,10 +385,111 @@ public class CalculateAverage_gabrielreid {
         }
 
         public Map<String, CitySummary> buildSummaryTable(int readByteCount, boolean skipToNewline) {
-            parseLineSegments(readByteCount, skipToNewline);
+            if (structuralIndex) {
+                parseLineSegmentsIndexed(readByteCount, skipToNewline);
+            }
+            else {
+                parseLineSegments(readByteCount, skipToNewline);
+            }
             return summaryTable.toMap();
         }
 
+        private void parseLineSegmentsIndexed(int byteCount, boolean skipToNewline) {
+            int idx = 0;
+
+            if (skipToNewline) {
+                while (this.readBuffer[idx] != NEWLINE_BYTE) {
+                    idx++;
+                }
+                idx++;
+            }
+
+            this.firstLineStart = idx;
+            int lineStart = idx;
+
+            while (lineStart < byteCount) {
+                int indexStart = lineStart;
+                int indexLen = Math.min(INDEX_BLOCK_SIZE, byteCount - indexStart);
+                int words = buildStructuralIndex(indexStart, indexLen);
+
+                int semicolonWord = 0;
+                int newlineWord = 0;
+                long semicolons = semicolonBits[0];
+                long newlines = newlineBits[0];
+                consume: while (true) {
+                    while (semicolons == 0) {
+                        if (++semicolonWord == words) {
+                            break consume;
+                        }
+                        semicolons = semicolonBits[semicolonWord];
+                    }
+                    while (newlines == 0) {
+                        if (++newlineWord == words) {
+                            break consume;
+                        }
+                        newlines = newlineBits[newlineWord];
+                    }
+                    int semicolonOffset = indexStart + (semicolonWord << 6) + Long.numberOfTrailingZeros(semicolons);
+                    int lineEnd = indexStart + (newlineWord << 6) + Long.numberOfTrailingZeros(newlines);
+                    semicolons &= semicolons - 1;
+                    newlines &= newlines - 1;
+
+                    putLine(lineStart, semicolonOffset, lineEnd);
+                    lineStart = lineEnd + 1;
+                    lastLineEnd = lineStart;
+                }
+
+                if (lineStart == indexStart) {
+                    // No complete line left, the rest is handed back as remainder
+                    break;
+                }
+            }
+        }
+
+        /**
+         * Fills the semicolon and newline bitmaps for {@code len} bytes starting at {@code start}, bit i of word w
+         * standing for byte {@code start + 64 * w + i}. Returns the number of words filled.
+         */
+        private int buildStructuralIndex(int start, int len) {
+            int fullWords = len >>> 6;
+            for (int w = 0; w < fullWords; w++) {
+                long semicolons = 0;
+                long newlines = 0;
+                for (int i = 0; i < Long.SIZE; i += BYTE_SPECIES_LEN) {
+                    var byteVector = ByteVector.fromArray(BYTE_SPECIES, readBuffer, start + (w << 6) + i);
+                    semicolons |= byteVector.eq(SEMICOLON_BYTE).toLong() << i;
+                    newlines |= byteVector.eq(NEWLINE_BYTE).toLong() << i;
+                }
+                semicolonBits[w] = semicolons;
+                newlineBits[w] = newlines;
+            }
+
+            int words = fullWords;
+            int tail = len & 63;
+            if (tail != 0) {
+                long semicolons = 0;
+                long newlines = 0;
+                int tailStart = start + (fullWords << 6);
+                for (int i = 0; i < tail; i++) {
+                    byte b = readBuffer[tailStart + i];
+                    semicolons |= (b == SEMICOLON_BYTE ? 1L : 0L) << i;
+                    newlines |= (b == NEWLINE_BYTE ? 1L : 0L) << i;
+                }
+                semicolonBits[words] = semicolons;
+                newlineBits[words] = newlines;
+                words++;
+            }
+            return words;
+        }
+
+        private void putLine(int lineStart, int semicolonOffset, int lineEnd) {
+            short negative = (short) ((readBuffer[semicolonOffset + 1] == NEG_BYTE) ? 1 : 0);
+            int numLength = (byte) ((lineEnd - (semicolonOffset + 1)));
+            var num = parseNumFromLine(this.readBuffer, semicolonOffset + 1 + negative, numLength - negative);
+            num = negative == 1 ? (short) -num : num;
+            summaryTable.putTemperatureValue(this.readBuffer, lineStart, semicolonOffset - lineStart, num);
+        }
+
         private void parseLineSegments(int byteCount, boolean skipToNewline) {
             var upperBound = BYTE_SPECIES.loopBound(byteCount) - BYTE_SPECIES_LEN;
             int idx = 0;
@@ -36,8 +36,8 @@ public class CalculateAverage_hundredwatt {
     private static final long CHUNK_SIZE = BUFFER_SIZE / THREAD_COUNT;
     private static final long FILE_CHUNK_SIZE = CHUNK_SIZE - MAX_ROW_SIZE;
     public static final int TEMPERATURE_SLOTS = 5003; // prime number
-    private static final short[] TEMPERATURES = new short[TEMPERATURE_SLOTS];
-    private static final long PERFECT_HASH_SEED = -1982870890352534081L;
+    static final short[] TEMPERATURES = new short[TEMPERATURE_SLOTS];
+    static final long PERFECT_HASH_SEED = -1982870890352534081L;
 
     // Construct a perfect hash function mapping temperatures encoded as longs (e.g., 0x2d342e3000000000 for -4.3) to
     // the corresponding short integer (e.g., -43).
@@ -15,6 +15,11 @@
  */
 package dev.morling.onebrc;
 
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
 import sun.misc.Unsafe;
 
 import java.io.IOException;
@@ -36,30 +41,42 @@ import static java.nio.file.StandardOpenOption.READ;
 public class CalculateAverage_iziamos {
     private static final Unsafe UNSAFE;
 
-    private static final String FILE = "./measurements.txt";
-    private static final Arena GLOBAL_ARENA = Arena.global();
-    private final static MemorySegment WHOLE_FILE_SEGMENT;
-    private final static long FILE_SIZE;
-    private final static long BASE_POINTER;
-    private final static long END_POINTER;
-
     static {
         try {
             final Field theUnsafe = Unsafe.class.getDeclaredField("theUnsafe");
             theUnsafe.setAccessible(true);
             UNSAFE = (Unsafe) theUnsafe.get(Unsafe.class);
-
-            final var fileChannel = (FileChannel) Files.newByteChannel(Path.of(FILE), READ);
-            WHOLE_FILE_SEGMENT = fileChannel.map(READ_ONLY, 0, fileChannel.size(), GLOBAL_ARENA);
-
         }
-        catch (final NoSuchFieldException | IllegalAccessException | IOException e) {
+        catch (final NoSuchFieldException | IllegalAccessException e) {
             throw new RuntimeException(e);
         }
+    }
+
+    /**
+     * Kept apart from the outer class so the cursors can be used (e.g. by {@link LoopCursorBenchmark_iziamos})
+     * without mapping {@code ./measurements.txt}.
+     */
+    private static class MappedFile {
+        private static final String FILE = "./measurements.txt";
+        private static final Arena GLOBAL_ARENA = Arena.global();
+        private final static MemorySegment WHOLE_FILE_SEGMENT;
+        private final static long FILE_SIZE;
+        private final static long BASE_POINTER;
+        private final static long END_POINTER;
+
+        static {
+            try {
+                final var fileChannel = (FileChannel) Files.newByteChannel(Path.of(FILE), READ);
+                WHOLE_FILE_SEGMENT = fileChannel.map(READ_ONLY, 0, fileChannel.size(), GLOBAL_ARENA);
+            }
+            catch (final IOException e) {
+                throw new RuntimeException(e);
+            }
 
-        FILE_SIZE = WHOLE_FILE_SEGMENT.byteSize();
-        BASE_POINTER = WHOLE_FILE_SEGMENT.address();
-        END_POINTER = BASE_POINTER + FILE_SIZE;
+            FILE_SIZE = WHOLE_FILE_SEGMENT.byteSize();
+            BASE_POINTER = WHOLE_FILE_SEGMENT.address();
+            END_POINTER = BASE_POINTER + FILE_SIZE;
+        }
     }
 
     private static final long CHUNK_SIZE = 64 * 1024 * 1024;
@@ -68,11 +85,12 @@ public class CalculateAverage_iziamos {
     public static void main(String[] args) throws Exception {
         // Thread.sleep(10_000);
 
-        final long threadCount = 1 + FILE_SIZE / CHUNK_SIZE;
+        final boolean vectorized = args.length > 0 && "--vector".equals(args[0]);
+        final long threadCount = 1 + MappedFile.FILE_SIZE / CHUNK_SIZE;
 
         final var processingFutures = new CompletableFuture[(int) threadCount];
         for (int i = 0; i < threadCount; ++i) {
-            processingFutures[i] = processSegment(i, CHUNK_SIZE);
+            processingFutures[i] = processSegment(i, CHUNK_SIZE, vectorized);
         }
 
         final long aggregate = (long) processingFutures[0].get();
@@ -102,17 +120,20 @@ public class CalculateAverage_iziamos {
         }
     }
 
-    private static CompletableFuture<Long> processSegment(final long chunkNumber, final long chunkSize) {
+    private static CompletableFuture<Long> processSegment(final long chunkNumber, final long chunkSize, final boolean vectorized) {
         final var ret = new CompletableFuture<Long>();
 
         Thread.ofVirtual().start(() -> {
             final long relativeStart = chunkNumber * chunkSize;
-            final long absoluteStart = BASE_POINTER + relativeStart;
+            final long absoluteStart = MappedFile.BASE_POINTER + relativeStart;
 
             final long absoluteEnd = computeAbsoluteEndWithSlack(absoluteStart + chunkSize);
-            final long startOffsetAfterSkipping = skipIncomplete(WHOLE_FILE_SEGMENT.address(), absoluteStart);
+            final long startOffsetAfterSkipping = skipIncomplete(MappedFile.WHOLE_FILE_SEGMENT.address(), absoluteStart);
 
-            final long result = processEvents(startOffsetAfterSkipping, absoluteEnd);
+            final LoopCursor cursor = vectorized
+                    ? new VectorLoopCursor(MappedFile.WHOLE_FILE_SEGMENT, startOffsetAfterSkipping, absoluteEnd)
+                    : new ScalarLoopCursor(startOffsetAfterSkipping, absoluteEnd);
+            final long result = processEvents(cursor);
             ret.complete(result);
         });
 
@@ -120,7 +141,7 @@ public class CalculateAverage_iziamos {
     }
 
     private static long computeAbsoluteEndWithSlack(final long chunk) {
-        return Long.compareUnsigned(END_POINTER, chunk) > 0 ? chunk : END_POINTER;
+        return Long.compareUnsigned(MappedFile.END_POINTER, chunk) > 0 ? chunk : MappedFile.END_POINTER;
     }
 
     private static long skipIncomplete(final long basePointer, final long start) {
@@ -135,14 +156,13 @@ public class CalculateAverage_iziamos {
         }
     }
 
-    private static long processEvents(final long start, final long limit) {
+    static long processEvents(final LoopCursor cursor) {
         final long result = ByteBackedResultSet.createResultSet();
-        scalarLoop(start, limit, result);
+        loop(cursor, result);
         return result;
     }
 
-    private static void scalarLoop(final long start, final long limit, final long result) {
-        final LoopCursor cursor = new ScalarLoopCursor(start, limit);
+    private static void loop(final LoopCursor cursor, final long result) {
         while (cursor.hasMore()) {
             final long address = cursor.getCurrentAddress();
             final int length = cursor.getStringLength();
@@ -165,10 +185,10 @@ public class CalculateAverage_iziamos {
     }
 
     public static class ScalarLoopCursor implements LoopCursor {
-        private long pointer;
+        long pointer;
         private final long limit;
 
-        private int hash = 0;
+        int hash = 0;
 
         public ScalarLoopCursor(final long pointer, final long limit) {
             this.pointer = pointer;
@@ -229,6 +249,138 @@ public class CalculateAverage_iziamos {
         }
     }
 
+    /**
+     * Finds the ';' of up to 64 rows ahead with vector compares and keeps their positions in a bitmap, so most rows
+     * don't touch memory at all for the delimiter search. The hash is computed a vector at a time and is identical
+     * to the one of {@link ScalarLoopCursor}, so both cursors can feed the same result set.
+     * <p>
+     * This is a negative result, kept for {@link LoopCursorBenchmark_iziamos}: it is about 15% slower than the scalar
+     * cursor there, and about 2x slower end to end with --vector. The hash isn't batched: it weights each byte by its
+     * position in the name, truncated to 32 bits, so it can't be derived from one pass over a window shared by several
+     * names, and each name still pays for a masked load and four shift rounds. C2 also doesn't scalarize the vectors
+     * everywhere, so they are boxed and need a collected heap.
+     */
+    public static class VectorLoopCursor extends ScalarLoopCursor {
+        private static final VectorSpecies<Byte> BYTE_SPECIES = ByteVector.SPECIES_PREFERRED;
+        private static final VectorSpecies<Integer> INT_SPECIES = BYTE_SPECIES.withLanes(int.class);
+        private static final int BYTE_LANES = BYTE_SPECIES.length();
+        private static final int WINDOW = Long.SIZE;
+
+        /**
+         * The scalar hash shifts byte i by i, which Java truncates to i & 31. With the name reinterpreted as ints,
+         * byte k of int lane j is byte 4j + k of the vector, so SHIFTS[phase][k] holds (4j + k) & 31 for every lane,
+         * offset by where the vector starts within the 32 byte cycle.
+         */
+        private static final int PHASES = Math.max(1, Integer.SIZE / BYTE_LANES);
+        private static final IntVector[][] SHIFTS = new IntVector[PHASES][Integer.BYTES];
+
+        /**
+         * PREFIXES[n] keeps the first n bytes of a vector.
+         */
+        private static final ByteVector[] PREFIXES = new ByteVector[BYTE_LANES + 1];
+
+        static {
+            for (int n = 0; n <= BYTE_LANES; ++n) {
+                PREFIXES[n] = ByteVector.zero(BYTE_SPECIES).blend((byte) -1, BYTE_SPECIES.indexInRange(0, n));
+            }
+            for (int phase = 0; phase < PHASES; ++phase) {
+                for (int k = 0; k < Integer.BYTES; ++k) {
+                    SHIFTS[phase][k] = IntVector.zero(INT_SPECIES).addIndex(Integer.BYTES)
+                            .add(phase * BYTE_LANES + k)
+                            .and(Integer.SIZE - 1);
+                }
+            }
+        }
+
+        private final MemorySegment segment;
+        private final long segmentAddress;
+        private final long segmentSize;
+
+        private long windowStart;
+        private long semicolons;
+
+        public VectorLoopCursor(final MemorySegment segment, final long pointer, final long limit) {
+            super(pointer, limit);
+            this.segment = segment;
+            this.segmentAddress = segment.address();
+            this.segmentSize = segment.byteSize();
+            loadWindow(pointer);
+        }
+
+        @Override
+        public int getStringLength() {
+            final long start = pointer;
+            final long end = findSemicolon(start);
+            final int strLen = (int) (end - start);
+
+            hash = hash(start - segmentAddress, strLen);
+            pointer = end + 1;
+
+            return strLen;
+        }
+
+        private long findSemicolon(long from) {
+            for (;;) {
+                final long offset = from - windowStart;
+                if (offset < WINDOW) {
+                    final long pending = semicolons & (-1L << offset);
+                    if (pending != 0) {
+                        return windowStart + Long.numberOfTrailingZeros(pending);
+                    }
+                    from = windowStart + WINDOW;
+                }
+                loadWindow(from);
+            }
+        }
+
+        private void loadWindow(final long from) {
+            final long offset = from - segmentAddress;
+            long bits = 0;
+            if (offset + WINDOW <= segmentSize) {
+                for (int i = 0; i < WINDOW; i += BYTE_LANES) {
+                    final ByteVector bytes = ByteVector.fromMemorySegment(BYTE_SPECIES, segment, offset + i, ByteOrder.nativeOrder());
+                    bits |= bytes.eq((byte) ';').toLong() << i;
+                }
+            }
+            else {
+                for (int i = 0; offset + i < segmentSize; ++i) {
+                    if (UNSAFE.getByte(from + i) == ';') {
+                        bits |= 1L << i;
+                    }
+                }
+            }
+            windowStart = from;
+            semicolons = bits;
+        }
+
+        private int hash(final long offset, final int length) {
+            IntVector acc = IntVector.zero(INT_SPECIES);
+            for (int chunk = 0; chunk < length; chunk += BYTE_LANES) {
+                final ByteVector bytes = load(offset + chunk).and(PREFIXES[Math.min(length - chunk, BYTE_LANES)]);
+                final IntVector ints = bytes.reinterpretAsInts();
+                final IntVector[] shifts = SHIFTS[(chunk & (Integer.SIZE - 1)) / BYTE_LANES];
+                for (int k = 0; k < Integer.BYTES; ++k) {
+                    // sign extend byte k of every lane, as the scalar hash does, then weight it by its position
+                    final IntVector signed = ints.lanewise(VectorOperators.LSHL, Integer.SIZE - Byte.SIZE * (k + 1))
+                            .lanewise(VectorOperators.ASHR, Integer.SIZE - Byte.SIZE);
+                    acc = acc.add(signed.lanewise(VectorOperators.LSHL, shifts[k]));
+                }
+            }
+            return acc.reduceLanes(VectorOperators.ADD);
+        }
+
+        /**
+         * Masked loads are slow, so only the last vector of the file is read through one.
+         */
+        private ByteVector load(final long offset) {
+            if (offset + BYTE_LANES <= segmentSize) {
+                return ByteVector.fromMemorySegment(BYTE_SPECIES, segment, offset, ByteOrder.nativeOrder());
+            }
+            final VectorMask<Byte> inSegment = BYTE_SPECIES.indexInRange(offset, segmentSize);
+            return ByteVector.fromMemorySegment(BYTE_SPECIES, segment, offset, ByteOrder.nativeOrder(), inSegment);
+        }
+    }
+
     public interface ResultConsumer {
         void consume(final String name, final int min, final int max, final long sum, final long count);
     }
@@ -252,6 +404,10 @@ public class CalculateAverage_iziamos {
             return baseAddress;
         }
 
+        public static void free(final long baseAddress) {
+            UNSAFE.freeMemory(baseAddress);
+        }
+
         public static void put(final long baseAddress, final long address, final int length, final int hash, final int value) {
             final long slot = findSlot(baseAddress, hash, address, length);
             final long structBase = baseAddress + (slot * STRUCT_SIZE);
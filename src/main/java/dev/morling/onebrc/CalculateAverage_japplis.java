@@ -16,6 +16,9 @@
 package dev.morling.onebrc;
 
 import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.concurrent.*;
@@ -28,6 +31,7 @@ import java.util.concurrent.*;
  *  - the first lines can start with comments lines using '#'
  *  - the temperatures can have more than one fraction digit but it needs to be constant in the file
  *  - it does not require much RAM
+ *  - an explicit memory budget with --memory-budget=MB (see MemoryBudget)
  *  - Java 8 as minimal Java version
  * Assumptions
  *  - No temperatures are above 100 or below -100
@@ -44,6 +48,7 @@ import java.util.concurrent.*;
  * - One HashMap per thread: 17" locally (12" on 1BRC server)
  * - Read file in multiple threads if available and
  * - Changed String to (byte[]) Text with cache: 18" locally (but 8" -> 5" on laptop)
+ * - Added memory budget mode for small containers
  *
  * @author Anthony Goubard - Japplis
  */
@@ -52,20 +57,39 @@ public class CalculateAverage_japplis {
     private static final String DEFAULT_MEASUREMENT_FILE = "measurements.txt";
     private static final int BUFFER_SIZE = 5 * 1024 * 1024; // 5 MB
     private static final int MAX_COMPUTE_THREADS = Runtime.getRuntime().availableProcessors();
+    private static final String MEMORY_BUDGET_OPTION = "--memory-budget=";
 
+    private final int blockSize;
+    private final int computeThreads;
+    private final int maxBlockCities;
     private int precision = -1;
     private int precisionLimitTenth;
     private long fileSize;
     private Map<Text, IntSummaryStatistics> cityMeasurementMap = new ConcurrentHashMap<>(10_000);
     private List<Byte> previousBlockLastLine = new ArrayList<>();
-    private Semaphore readFileLock = new Semaphore(MAX_COMPUTE_THREADS);
+    private Semaphore readFileLock;
     private Queue<ByteArray> bufferPool = new ConcurrentLinkedQueue<>();
 
+    private CalculateAverage_japplis() {
+        this(BUFFER_SIZE, MAX_COMPUTE_THREADS, Integer.MAX_VALUE);
+    }
+
+    private CalculateAverage_japplis(MemoryBudget budget) {
+        this(budget.blockSize, budget.threads, budget.maxBlockCities);
+    }
+
+    private CalculateAverage_japplis(int blockSize, int computeThreads, int maxBlockCities) {
+        this.blockSize = blockSize;
+        this.computeThreads = computeThreads;
+        this.maxBlockCities = maxBlockCities;
+        readFileLock = new Semaphore(computeThreads);
+    }
+
     private void parseTemperatures(File measurementsFile) throws Exception {
         fileSize = measurementsFile.length();
         int blockIndex = 0;
-        int totalBlocks = (int) (fileSize / BUFFER_SIZE) + 1;
-        ExecutorService threadPool = Executors.newFixedThreadPool(MAX_COMPUTE_THREADS);
+        int totalBlocks = (int) (fileSize / blockSize) + 1;
+        ExecutorService threadPool = Executors.newFixedThreadPool(computeThreads);
         List<Future> parseBlockTasks = new ArrayList<>();
 
         while (blockIndex < totalBlocks) {
@@ -101,7 +125,7 @@ public class CalculateAverage_japplis {
 
     private Callable<ByteArray> readBlock(File measurementsFile, long blockIndex) {
         return () -> {
-            long fileIndex = blockIndex * BUFFER_SIZE;
+            long fileIndex = blockIndex * blockSize;
             if (fileIndex >= fileSize) {
                 readFileLock.release();
                 return new ByteArray(0);
@@ -113,10 +137,10 @@ public class CalculateAverage_japplis {
                         skipped += measurementsFileIS.skip(fileIndex - skipped);
                     }
                 }
-                long bufferSize = Math.min(BUFFER_SIZE, fileSize - fileIndex);
-                ByteArray buffer = bufferSize == BUFFER_SIZE ? bufferPool.poll() : new ByteArray((int) bufferSize);
+                long bufferSize = Math.min(blockSize, fileSize - fileIndex);
+                ByteArray buffer = bufferSize == blockSize ? bufferPool.poll() : new ByteArray((int) bufferSize);
                 if (buffer == null) {
-                    buffer = new ByteArray(BUFFER_SIZE);
+                    buffer = new ByteArray(blockSize);
                 }
                 int totalRead = measurementsFileIS.read(buffer.array(), 0, (int) bufferSize);
                 while (totalRead < bufferSize) {
@@ -134,18 +158,24 @@ public class CalculateAverage_japplis {
     private Runnable parseTemperaturesBlock(ByteArray buffer, int startIndex) {
         Runnable countAverageRun = () -> {
             int bufferIndex = startIndex;
-            Map<Text, IntSummaryStatistics> blockCityMeasurementMap = new HashMap<>(10_000);
-            Map<Integer, Text> textPool = new HashMap<>(10_000);
+            int initialCapacity = Math.min(10_000, maxBlockCities);
+            Map<Text, IntSummaryStatistics> blockCityMeasurementMap = new HashMap<>(initialCapacity);
+            Map<Integer, Text> textPool = new HashMap<>(initialCapacity);
             byte[] bufferArray = buffer.array();
             try {
                 while (bufferIndex < bufferArray.length) {
                     bufferIndex = readNextLine(bufferIndex, bufferArray, blockCityMeasurementMap, textPool);
+                    if (blockCityMeasurementMap.size() >= maxBlockCities) { // Table full for the budget: flush it
+                        mergeBlockResults(blockCityMeasurementMap);
+                        blockCityMeasurementMap = new HashMap<>(initialCapacity);
+                        textPool.clear();
+                    }
                 }
             }
             catch (ArrayIndexOutOfBoundsException ex) {
                 // Done reading and parsing the buffer
             }
-            if (bufferArray.length == BUFFER_SIZE)
+            if (bufferArray.length == blockSize)
                 bufferPool.add(buffer);
             mergeBlockResults(blockCityMeasurementMap);
             readFileLock.release();
@@ -314,10 +344,85 @@ public class CalculateAverage_japplis {
     }
 
     public static final void main(String... args) throws Exception {
-        CalculateAverage_japplis cityTemperaturesCalculator = new CalculateAverage_japplis();
-        String measurementFile = args.length == 1 ? args[0] : DEFAULT_MEASUREMENT_FILE;
+        String measurementFile = DEFAULT_MEASUREMENT_FILE;
+        MemoryBudget budget = null;
+        for (String arg : args) {
+            if (arg.startsWith(MEMORY_BUDGET_OPTION)) {
+                long budgetMB = Long.parseLong(arg.substring(MEMORY_BUDGET_OPTION.length()));
+                budget = new MemoryBudget(budgetMB * 1024 * 1024);
+            }
+            else {
+                measurementFile = arg;
+            }
+        }
+        CalculateAverage_japplis cityTemperaturesCalculator = budget == null ? new CalculateAverage_japplis() : new CalculateAverage_japplis(budget);
+        long start = System.nanoTime();
         cityTemperaturesCalculator.parseTemperatures(new File(measurementFile));
+        long elapsed = System.nanoTime() - start;
         cityTemperaturesCalculator.printTemperatureStatsByCity();
+        if (budget != null) {
+            budget.report(cityTemperaturesCalculator.fileSize, elapsed);
+        }
+    }
+
+    /**
+     * Splits a memory budget (in bytes) between compute threads, block buffers and per block city tables.
+     * Each thread can hold two blocks (one being read, one being parsed) and a city table.
+     * When the budget doesn't fit the default sizes, it first uses fewer threads, then smaller blocks
+     * and finally smaller city tables, which are then merged in the global map whenever they are full.
+     * The budget only covers the work data: the JVM heap (-Xmx) should be set accordingly.
+     */
+    private static class MemoryBudget {
+
+        private static final long BASE_FOOTPRINT = 32 * 1024 * 1024; // JVM internals and the merged city map
+        private static final int CITY_FOOTPRINT = 256; // Text, statistics, text pool and map entries of a city
+        private static final int DEFAULT_BLOCK_CITIES = 10_000;
+        private static final int MIN_BLOCK_SIZE = 64 * 1024;
+        private static final int MIN_BLOCK_CITIES = 100;
+
+        private final long bytes;
+        private final int threads;
+        private final int blockSize;
+        private final int maxBlockCities;
+
+        private MemoryBudget(long bytes) {
+            this.bytes = bytes;
+            long available = bytes - BASE_FOOTPRINT;
+            long threadFootprint = 2L * BUFFER_SIZE + (long) DEFAULT_BLOCK_CITIES * CITY_FOOTPRINT;
+            if (available >= threadFootprint) {
+                threads = (int) Math.min(MAX_COMPUTE_THREADS, available / threadFootprint);
+                blockSize = BUFFER_SIZE;
+                maxBlockCities = DEFAULT_BLOCK_CITIES;
+            }
+            else if (available >= 2L * MIN_BLOCK_SIZE + (long) DEFAULT_BLOCK_CITIES * CITY_FOOTPRINT) {
+                threads = 1;
+                blockSize = (int) ((available - (long) DEFAULT_BLOCK_CITIES * CITY_FOOTPRINT) / 2);
+                maxBlockCities = DEFAULT_BLOCK_CITIES;
+            }
+            else if (available >= 2L * MIN_BLOCK_SIZE + (long) MIN_BLOCK_CITIES * CITY_FOOTPRINT) {
+                threads = 1;
+                blockSize = MIN_BLOCK_SIZE;
+                maxBlockCities = (int) ((available - 2L * MIN_BLOCK_SIZE) / CITY_FOOTPRINT);
+            }
+            else {
+                throw new IllegalArgumentException("Memory budget too small: " + (bytes / 1024 / 1024) + " MB");
+            }
+        }
+
+        private void report(long fileSize, long elapsedNanos) {
+            long peakHeap = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP) {
+                    peakHeap += pool.getPeakUsage().getUsed();
+                }
+            }
+            double budgetMB = bytes / 1024.0 / 1024.0;
+            double throughput = fileSize / 1024.0 / 1024.0 / (elapsedNanos / 1e9);
+            System.err.printf("Memory budget %.0f MB: %d threads, %d KB blocks, %d cities per block table%n",
+                    budgetMB, threads, blockSize / 1024, maxBlockCities);
+            System.err.printf("Peak heap %.0f MB, %.1f MB/s, %.3f MB/s per budget MB%n",
+                    peakHeap / 1024.0 / 1024.0, throughput, throughput / budgetMB);
+        }
     }
 
     private class ByteArray {
@@ -23,9 +23,15 @@ import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Spliterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.ForkJoinPool;
@@ -42,6 +48,7 @@ import java.util.stream.StreamSupport;
  */
 public class CalculateAverage_kevinmcmurtrie implements AutoCloseable {
     private static final String FILE = "./measurements.txt";
+    private static final String STDIN = "-";
     private static final Charset CHARSET = StandardCharsets.UTF_8;
     private static final int THREADS = Runtime.getRuntime().availableProcessors() + 2;
 
@@ -49,6 +56,9 @@ public class CalculateAverage_kevinmcmurtrie implements AutoCloseable {
     private static final int MAX_LINE_LENGTH = 1024;
 
     private static final int READ_CHUNK_SIZE = 4 * 1024 * 1024;
+
+    // Buffers in flight when streaming: one per parser, one being filled and a few to absorb jitter
+    private static final int PIPELINE_BUFFERS = THREADS + 2;
     private static final int CHAR_CHUNK_SIZE = Math.max(MAX_LINE_LENGTH, 64 * 1024);
 
     // Internal array size for hashing cities
@@ -309,7 +319,7 @@ public class CalculateAverage_kevinmcmurtrie implements AutoCloseable {
     }
 
     public CalculateAverage_kevinmcmurtrie(final String path) throws IOException {
-        in = new LineAlignedInput(new FileInputStream(path), MAX_LINE_LENGTH);
+        in = new LineAlignedInput(STDIN.equals(path) ? System.in : new FileInputStream(path), MAX_LINE_LENGTH);
     }
 
     @Override
@@ -341,7 +351,8 @@ public class CalculateAverage_kevinmcmurtrie implements AutoCloseable {
                 buf[offset++] = pushbackStack[--pushedBackLen];
             }
 
-            final int readSize = in.read(buf, offset, buf.length - offset);
+            // Pipes return whatever is available, so keep reading until the buffer is full
+            final int readSize = in.readNBytes(buf, offset, buf.length - offset);
             if (readSize <= 0) {
                 return offset;
             }
@@ -438,38 +449,153 @@ public class CalculateAverage_kevinmcmurtrie implements AutoCloseable {
 
         int blen;
         while ((blen = fillFromFile(buf)) > 0) {
-            try (LineAlignedReader reader = new LineAlignedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, blen), CHARSET), CHAR_CHUNK_SIZE)) {
-                int length;
-                while ((length = reader.fillChunk(cbuf)) > 0) {
-                    int pos = 0;
-                    do {
-                        // Skip whitespace
-                        while ((pos < length) && Character.isWhitespace(cbuf[pos])) {
+            collectChunk(accumulation, buf, blen, cbuf);
+        }
+        return accumulation;
+    }
+
+    /**
+     * Collect the values of one line-aligned chunk
+     */
+    private static void collectChunk(final Accumulator accumulation, final byte buf[], final int blen, final char cbuf[]) throws IOException {
+        try (LineAlignedReader reader = new LineAlignedReader(new InputStreamReader(new ByteArrayInputStream(buf, 0, blen), CHARSET), CHAR_CHUNK_SIZE)) {
+            int length;
+            while ((length = reader.fillChunk(cbuf)) > 0) {
+                int pos = 0;
+                do {
+                    // Skip whitespace
+                    while ((pos < length) && Character.isWhitespace(cbuf[pos])) {
+                        pos++;
+                    }
+                    final int start = pos;
+                    if (start < length) {
+                        int lastDelimiterPos = -1;
+                        int c;
+                        while ((pos < length) && ((c = cbuf[pos]) != '\n') && (c != '\r')) {
+                            if (c == DELIMITER) {
+                                lastDelimiterPos = pos;
+                            }
                             pos++;
                         }
-                        final int start = pos;
-                        if (start < length) {
-                            int lastDelimiterPos = -1;
-                            int c;
-                            while ((pos < length) && ((c = cbuf[pos]) != '\n') && (c != '\r')) {
-                                if (c == DELIMITER) {
-                                    lastDelimiterPos = pos;
-                                }
-                                pos++;
-                            }
 
-                            if (pos > start) {
-                                if (lastDelimiterPos < 1) {
-                                    throw new IllegalArgumentException("Malformed input: " + new String(cbuf, start, pos - start));
-                                }
-                                accumulation.accumulate(cbuf, lastDelimiterPos, start, pos);
+                        if (pos > start) {
+                            if (lastDelimiterPos < 1) {
+                                throw new IllegalArgumentException("Malformed input: " + new String(cbuf, start, pos - start));
                             }
+                            accumulation.accumulate(cbuf, lastDelimiterPos, start, pos);
                         }
-                    } while (pos < length);
+                    }
+                } while (pos < length);
+            }
+        }
+    }
+
+    /**
+     * Streaming mode for stdin and pipes. A single thread reads line-aligned chunks into a fixed ring of
+     * buffers and hands them over to the parsers, which give them back once done. Memory is bounded by
+     * the ring, and the reader blocks when all buffers are waiting to be parsed. A parser that fails keeps
+     * taking chunks and giving their buffers back, without parsing them, until the end, so that neither the
+     * reader nor the other parsers wait for it; the reader stops reading as soon as one has failed.
+     */
+    static class ChunkPipeline {
+        record Chunk(byte[] buf, int length) {
+        }
+
+        // Sent once to each parser at the end of input
+        private static final Chunk END = new Chunk(new byte[0], 0);
+
+        private final BlockingQueue<byte[]> free;
+        private final BlockingQueue<Chunk> filled;
+        private volatile IOException failure;
+        private volatile boolean parserFailed;
+
+        ChunkPipeline(final int bufferCount, final int bufferSize) {
+            free = new ArrayBlockingQueue<>(bufferCount);
+            filled = new ArrayBlockingQueue<>(bufferCount + THREADS);
+            for (int i = 0; i < bufferCount; ++i) {
+                free.add(new byte[bufferSize]);
+            }
+        }
+
+        void read(final LineAlignedInput in, final int parsers) throws InterruptedException {
+            try {
+                int len;
+                byte buf[];
+                while (!parserFailed && (len = in.fillChunk(buf = free.take())) > 0) {
+                    filled.put(new Chunk(buf, len));
+                }
+            }
+            catch (final IOException e) {
+                failure = e;
+            }
+            finally {
+                for (int i = 0; i < parsers; ++i) {
+                    filled.put(END);
                 }
             }
         }
-        return accumulation;
+
+        Accumulator parse() throws IOException, InterruptedException {
+            final Accumulator accumulation = new Accumulator(HASH_BUCKETS);
+            final char cbuf[] = new char[CHAR_CHUNK_SIZE];
+
+            Exception error = null;
+            Chunk chunk;
+            while ((chunk = filled.take()) != END) {
+                try {
+                    if (error == null) {
+                        collectChunk(accumulation, chunk.buf, chunk.length, cbuf);
+                    }
+                }
+                catch (final IOException | RuntimeException e) {
+                    error = e;
+                    parserFailed = true;
+                }
+                finally {
+                    free.put(chunk.buf);
+                }
+            }
+            if (error instanceof IOException e) {
+                throw e;
+            }
+            if (error instanceof RuntimeException e) {
+                throw e;
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return accumulation;
+        }
+    }
+
+    /**
+     * Like {@link #collectParallel(int)}, but with a dedicated reader thread, see {@link ChunkPipeline}.
+     *
+     * @param threads How many parser threads to allocate
+     * @return Accumulator
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    public Accumulator collectPipelined(final int threads) throws InterruptedException, ExecutionException {
+        final ChunkPipeline pipeline = new ChunkPipeline(PIPELINE_BUFFERS, READ_CHUNK_SIZE);
+        final Accumulator acc;
+        try (final ExecutorService pool = new ForkJoinPool(threads + 1)) {
+            final Future<?> reader = pool.submit(() -> {
+                pipeline.read(in, threads);
+                return null;
+            });
+
+            final List<Future<Accumulator>> tasks = new ArrayList<>(threads);
+            for (int i = 0; i < threads; ++i) {
+                tasks.add(pool.submit(pipeline::parse));
+            }
+            acc = tasks.get(0).get();
+            for (int i = 1; i < threads; ++i) {
+                acc.merge(tasks.get(i).get());
+            }
+            reader.get();
+        }
+        return acc;
     }
 
     /**
@@ -485,15 +611,14 @@ public class CalculateAverage_kevinmcmurtrie implements AutoCloseable {
         final Accumulator acc;
         // ForkJoinPool is somehow faster even without major work stealing. Class loading?
         try (final ExecutorService pool = new ForkJoinPool(threads)) {
-            @SuppressWarnings("unchecked")
-            final Future<Accumulator> tasks[] = new Future[threads];
+            final List<Future<Accumulator>> tasks = new ArrayList<>(threads);
 
             for (int i = 0; i < threads; ++i) {
-                tasks[i] = pool.submit(this::collect);
+                tasks.add(pool.submit(this::collect));
             }
-            acc = tasks[0].get();
+            acc = tasks.get(0).get();
             for (int i = 1; i < threads; ++i) {
-                acc.merge(tasks[i].get());
+                acc.merge(tasks.get(i).get());
             }
         }
         return acc;
@@ -502,11 +627,13 @@ public class CalculateAverage_kevinmcmurtrie implements AutoCloseable {
     public static void main(final String args[]) throws IOException, InterruptedException, ExecutionException {
         // final long startMillis = System.currentTimeMillis();
 
+        // "-" reads from stdin. Both stdin and named pipes are streamed, see ChunkPipeline.
         final String path = args.length > 0 ? args[0] : FILE;
+        final boolean streaming = STDIN.equals(path) || !Files.isRegularFile(Path.of(path));
 
         final Accumulator acc;
         try (CalculateAverage_kevinmcmurtrie c = new CalculateAverage_kevinmcmurtrie(path)) {
-            acc = c.collectParallel(THREADS);
+            acc = streaming ? c.collectPipelined(THREADS) : c.collectParallel(THREADS);
         }
 
         System.out.println(acc.toStream().sorted(Accumulator.cityComparator).map(String::valueOf).collect(Collectors.joining(", ", "{", "}")));
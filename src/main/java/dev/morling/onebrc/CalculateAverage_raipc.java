@@ -22,7 +22,10 @@ import java.lang.invoke.MethodType;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 import java.util.Comparator;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
 
 public class CalculateAverage_raipc {
     private static final String FILE = "./measurements.txt";
@@ -73,7 +76,8 @@ public class CalculateAverage_raipc {
 
     public static void main(String[] args) throws InterruptedException {
         File inputFile = new File(FILE);
-        ParsingTask parsingTask = new ParsingTask(inputFile, 0, inputFile.length());
+        SplitPolicy policy = new SplitPolicy(inputFile.length(), ForkJoinPool.getCommonPoolParallelism());
+        ParsingTask parsingTask = new ParsingTask(inputFile, policy, 0, inputFile.length());
         AggregatedMeasurement[] results = parsingTask.fork().join().toArray();
         System.out.println(formatResult(results));
     }
@@ -91,15 +95,66 @@ public class CalculateAverage_raipc {
         return out.append('}').toString();
     }
 
-    private static class ParsingTask extends RecursiveTask<MyHashMap> {
-        private static final int SPLIT_FACTOR = 4;
+    /**
+     * Decides how far to split, based on the throughput measured on the tasks completed so far,
+     * instead of a fixed fraction of the file. Leaves are sized to take about TARGET_TASK_NANOS,
+     * so small files aren't cut in pieces not worth a task and huge files get enough tasks to balance.
+     */
+    private static class SplitPolicy {
         private static final int MIN_TASK_SIZE = 256 * 1024;
+        private static final int INITIAL_SPLIT_FACTOR = 4;
+        private static final long INITIAL_MAX_TASK_SIZE = 4 * 1024 * 1024;
+        private static final long TARGET_TASK_NANOS = 20_000_000;
+
+        private final long initialTaskSize;
+        private final long maxTaskSize;
+        private final LongAdder parsedBytes = new LongAdder();
+        private final LongAdder parsingNanos = new LongAdder();
+
+        SplitPolicy(long fileLength, int parallelism) {
+            this.maxTaskSize = Math.max(MIN_TASK_SIZE, fileLength / parallelism);
+            this.initialTaskSize = Math.clamp(fileLength / parallelism / INITIAL_SPLIT_FACTOR, MIN_TASK_SIZE, INITIAL_MAX_TASK_SIZE);
+        }
+
+        void record(long bytes, long nanos) {
+            parsedBytes.add(bytes);
+            parsingNanos.add(nanos);
+        }
+
+        long targetTaskSize() {
+            long nanos = parsingNanos.sum();
+            if (nanos == 0) {
+                return initialTaskSize;
+            }
+            long size = (long) ((double) parsedBytes.sum() / nanos * TARGET_TASK_NANOS);
+            return Math.clamp(size, MIN_TASK_SIZE, maxTaskSize);
+        }
+
+        boolean shouldSplit(long size) {
+            if (size < 2 * MIN_TASK_SIZE) {
+                return false;
+            }
+            if (size > targetTaskSize()) {
+                return true;
+            }
+            // Below the target size, only split if there are idle workers and nothing
+            // queued here for them to steal, i.e. at the start and towards the end of the run
+            ForkJoinPool pool = ForkJoinTask.getPool();
+            return pool != null
+                    && ForkJoinTask.getQueuedTaskCount() == 0
+                    && pool.getActiveThreadCount() < pool.getParallelism();
+        }
+    }
+
+    private static class ParsingTask extends RecursiveTask<MyHashMap> {
         private final File file;
+        private final transient SplitPolicy policy;
         private final long startPosition;
         private final long endPosition;
 
-        private ParsingTask(File file, long startPosition, long endPosition) {
+        private ParsingTask(File file, SplitPolicy policy, long startPosition, long endPosition) {
             this.file = file;
+            this.policy = policy;
             this.startPosition = startPosition;
             this.endPosition = endPosition;
         }
@@ -107,11 +162,15 @@ public class CalculateAverage_raipc {
         @Override
         protected MyHashMap compute() {
             long size = endPosition - startPosition;
-            if (size <= MIN_TASK_SIZE || size < file.length() / Runtime.getRuntime().availableProcessors() / SPLIT_FACTOR) {
-                return doCompute();
+            if (!policy.shouldSplit(size)) {
+                long start = System.nanoTime();
+                MyHashMap result = doCompute();
+                policy.record(size, System.nanoTime() - start);
+                return result;
             }
-            var firstHalf = new ParsingTask(file, startPosition, (startPosition + endPosition) / 2).fork();
-            var secondHalf = new ParsingTask(file, (startPosition + endPosition) / 2, endPosition).fork();
+            // The results are merged pairwise on the way up, so the merging is spread over the workers as well
+            var firstHalf = new ParsingTask(file, policy, startPosition, (startPosition + endPosition) / 2).fork();
+            var secondHalf = new ParsingTask(file, policy, (startPosition + endPosition) / 2, endPosition).fork();
             var firstHalfResults = firstHalf.join();
             var secondHalfResults = secondHalf.join();
             firstHalfResults.merge(secondHalfResults);
@@ -172,40 +172,42 @@ class Result {
     }
 
 class ByteArrayToResultMap {
-    public static final int MAPSIZE = 1024 * 128;
-    Result[] slots = new Result[MAPSIZE];
-    byte[][] keys = new byte[MAPSIZE][];
+    private static final int INITIAL_SIZE = 1024;
+    private final ByteKeyHashMap keys = new ByteKeyHashMap(INITIAL_SIZE);
+    private double[] mins = new double[INITIAL_SIZE];
+    private double[] maxs = new double[INITIAL_SIZE];
+    private double[] sums = new double[INITIAL_SIZE];
+    private long[] counts = new long[INITIAL_SIZE];
 
     public void putOrMerge(byte[] key, int offset, int size, double temp, int hash) {
-        int slot = hash & (slots.length - 1);
-        var slotValue = slots[slot];
-        // Linear probe for open slot
-        while (slotValue != null && (keys[slot].length != size || !Arrays.equals(keys[slot], 0, size, key, offset, size))) {
-            slot = (slot + 1) & (slots.length - 1);
-            slotValue = slots[slot];
+        int index = keys.put(key, offset, size, hash);
+        if (index == counts.length) {
+            mins = Arrays.copyOf(mins, index * 2);
+            maxs = Arrays.copyOf(maxs, index * 2);
+            sums = Arrays.copyOf(sums, index * 2);
+            counts = Arrays.copyOf(counts, index * 2);
         }
-        Result value = slotValue;
-        if (value == null) {
-            slots[slot] = new Result(temp);
-            byte[] bytes = new byte[size];
-            System.arraycopy(key, offset, bytes, 0, size);
-            keys[slot] = bytes;
-        } else {
-            value.min = Math.min(value.min, temp);
-            value.max = Math.max(value.max, temp);
-            value.sum += temp;
-            value.count += 1;
+        if (counts[index] == 0) {
+            mins[index] = maxs[index] = sums[index] = temp;
+            counts[index] = 1;
+        }
+        else {
+            mins[index] = Math.min(mins[index], temp);
+            maxs[index] = Math.max(maxs[index], temp);
+            sums[index] += temp;
+            counts[index] += 1;
         }
     }
 
     // Get all pairs
     public List<Entry> getAll() {
-        List<Entry> result = new ArrayList<>(slots.length);
-        for (int i = 0; i < slots.length; i++) {
-            Result slotValue = slots[i];
-            if (slotValue != null) {
-                result.add(new Entry(keys[i], slotValue));
-            }
+        List<Entry> result = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            Result value = new Result(mins[i]);
+            value.max = maxs[i];
+            value.sum = sums[i];
+            value.count = counts[i];
+            result.add(new Entry(keys.key(i), value));
         }
         return result;
     }
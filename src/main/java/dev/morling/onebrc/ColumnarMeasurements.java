@@ -0,0 +1,317 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * A columnar form of the measurements, partitioned by station, for answering many queries over the
+ * same data. The readings are the tenths of a degree of every fast CalculateAverage_*.
+ * <p>
+ * The layout, little-endian:
+ *
+ * <pre>
+ * magic          "1BRCCOL1"
+ * station count  u32
+ * reserved       u32
+ * row count      u64
+ * dictionary     for each station in name order, u16 length and the UTF-8 name
+ * padding        to a multiple of 8 bytes
+ * index          for each station, 32 bytes: run offset u64, count u64, sum i64, min i16, max i16, bits u8
+ * runs           for each station, its readings, 8-byte aligned
+ * padding        8 bytes
+ * </pre>
+ *
+ * The index is a zone map: min, max, sum and count of each station, so the usual result needs nothing
+ * else. The run of a station holds its readings sorted, each stored as reading - min in the fewest bits
+ * that fit max - min (frame of reference bit packing, 11 bits for the whole -99.9..99.9 range). Being
+ * sorted and fixed width, the k-th smallest reading is a single read: a percentile only touches one word of
+ * its station's run.
+ * <p>
+ * The converter takes a {@link BinaryMeasurements} file, or converts a text file to one first. It counts
+ * the rows of each station per thread, scatters the readings into a scratch file grouped by station, then
+ * sorts and packs the stations in parallel. Short arrays are sorted by counting, so this is linear.
+ * <p>
+ * Usage: [input, ./measurements.bin by default] [output, ./measurements.col by default]
+ */
+public final class ColumnarMeasurements {
+    private static final long MAGIC = 0x314c4f4343524231L; // "1BRCCOL1"
+    private static final int FIXED_HEADER_SIZE = 8 + 4 + 4 + 8;
+    private static final int INDEX_ENTRY_SIZE = 32;
+    // Runs are read 8 bytes at a time
+    private static final int RUN_PADDING = 8;
+
+    private static final ValueLayout.OfInt INT_LE = ValueLayout.JAVA_INT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfShort SHORT_LE = ValueLayout.JAVA_SHORT_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+    private static final ValueLayout.OfLong LONG_LE = ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * A station's zone map and where its run is.
+     */
+    public record Station(String name, long count, long sum, int min, int max, int bits, long runOffset) {
+        /**
+         * Returns the reading of the given rank, 0 for the smallest.
+         */
+        public int reading(MemorySegment file, long rank) {
+            if (bits == 0) {
+                return min;
+            }
+            long bit = rank * bits;
+            long word = file.get(LONG_LE, runOffset + (bit >>> 3));
+            return min + (int) ((word >>> (bit & 7)) & ((1L << bits) - 1));
+        }
+    }
+
+    private ColumnarMeasurements() {
+    }
+
+    public static boolean isColumnar(MemorySegment file) {
+        return file.byteSize() >= FIXED_HEADER_SIZE && file.get(LONG_LE, 0) == MAGIC;
+    }
+
+    /**
+     * Reads the dictionary and the index, without touching the runs.
+     */
+    public static List<Station> stations(MemorySegment file) {
+        if (!isColumnar(file)) {
+            throw new IllegalArgumentException("Not a columnar measurements file");
+        }
+        int count = file.get(INT_LE, 8);
+        if (count < 0) {
+            throw new IllegalArgumentException("Corrupt header");
+        }
+        String[] names = new String[count];
+        long offset = FIXED_HEADER_SIZE;
+        for (int i = 0; i < count; i++) {
+            if (offset + 2 > file.byteSize()) {
+                throw new IllegalArgumentException("Truncated dictionary");
+            }
+            int length = Short.toUnsignedInt(file.get(SHORT_LE, offset));
+            if (offset + 2 + length > file.byteSize()) {
+                throw new IllegalArgumentException("Truncated dictionary");
+            }
+            names[i] = new String(file.asSlice(offset + 2, length).toArray(ValueLayout.JAVA_BYTE), StandardCharsets.UTF_8);
+            offset += 2 + length;
+        }
+        long index = align(offset);
+        if (index + (long) count * INDEX_ENTRY_SIZE > file.byteSize()) {
+            throw new IllegalArgumentException("Truncated index");
+        }
+
+        List<Station> stations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long entry = index + (long) i * INDEX_ENTRY_SIZE;
+            Station station = new Station(names[i], file.get(LONG_LE, entry + 8), file.get(LONG_LE, entry + 16), file.get(SHORT_LE, entry + 24),
+                    file.get(SHORT_LE, entry + 26), file.get(ValueLayout.JAVA_BYTE, entry + 28), file.get(LONG_LE, entry));
+            if (station.bits() < 0 || station.bits() > 16 || station.runOffset() + runSize(station.count(), station.bits()) + RUN_PADDING > file.byteSize()) {
+                throw new IllegalArgumentException("Corrupt index entry for " + station.name());
+            }
+            stations.add(station);
+        }
+        return stations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Path input = Path.of(args.length > 0 ? args[0] : "./measurements.bin");
+        Path output = Path.of(args.length > 1 ? args[1] : "./measurements.col");
+        long start = System.currentTimeMillis();
+
+        boolean binary;
+        try (Arena arena = Arena.ofConfined(); FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            binary = BinaryMeasurements.isBinary(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size(), arena));
+        }
+        if (binary) {
+            convert(input, output);
+        }
+        else {
+            Path rows = Files.createTempFile("measurements", ".bin");
+            try {
+                BinaryMeasurements.convert(input, rows);
+                convert(rows, output);
+            }
+            finally {
+                Files.delete(rows);
+            }
+        }
+        System.out.printf("Converted %s to %s in %d ms%n", input, output, System.currentTimeMillis() - start);
+    }
+
+    /**
+     * Writes the rows of a {@link BinaryMeasurements} file in the columnar form.
+     */
+    public static void convert(Path input, Path output) throws IOException {
+        Path scratch = Files.createTempFile("measurements", ".scratch");
+        try (Arena arena = Arena.ofShared();
+                FileChannel scratchChannel = FileChannel.open(scratch, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE);
+                FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+            MemorySegment rows = in.map(FileChannel.MapMode.READ_ONLY, 0, in.size(), arena);
+            BinaryMeasurements.Header header = BinaryMeasurements.header(rows);
+            int stationCount = header.names().length;
+            int recordSize = header.recordSize();
+            int threads = header.rows() < 1 << 18 ? 1 : Runtime.getRuntime().availableProcessors();
+            long[] threadStarts = new long[threads + 1];
+            for (int t = 0; t <= threads; t++) {
+                threadStarts[t] = header.dataOffset() + header.rows() * t / threads * recordSize;
+            }
+
+            // Rows per thread and station, and the zone maps
+            long[][] counts = new long[threads][stationCount];
+            long[] sums = new long[stationCount];
+            int[] mins = new int[stationCount];
+            int[] maxs = new int[stationCount];
+            Arrays.fill(mins, Integer.MAX_VALUE);
+            Arrays.fill(maxs, Integer.MIN_VALUE);
+            IntStream.range(0, threads).parallel().forEach(t -> {
+                long[] count = counts[t];
+                long[] sum = new long[stationCount];
+                int[] min = new int[stationCount];
+                int[] max = new int[stationCount];
+                Arrays.fill(min, Integer.MAX_VALUE);
+                Arrays.fill(max, Integer.MIN_VALUE);
+                for (long offset = threadStarts[t]; offset < threadStarts[t + 1]; offset += recordSize) {
+                    int id = BinaryMeasurements.stationId(rows, offset, recordSize);
+                    int value = BinaryMeasurements.reading(rows, offset, recordSize);
+                    count[id]++;
+                    sum[id] += value;
+                    min[id] = Math.min(min[id], value);
+                    max[id] = Math.max(max[id], value);
+                }
+                synchronized (sums) {
+                    for (int id = 0; id < stationCount; id++) {
+                        sums[id] += sum[id];
+                        mins[id] = Math.min(mins[id], min[id]);
+                        maxs[id] = Math.max(maxs[id], max[id]);
+                    }
+                }
+            });
+
+            // Each thread scatters its readings into its own part of each station's range of the scratch file
+            long[][] cursors = new long[threads][stationCount];
+            long[] stationCounts = new long[stationCount];
+            long[] scratchStarts = new long[stationCount];
+            long scratchSize = 0;
+            for (int id = 0; id < stationCount; id++) {
+                scratchStarts[id] = scratchSize;
+                for (int t = 0; t < threads; t++) {
+                    cursors[t][id] = scratchSize;
+                    scratchSize += counts[t][id] * 2;
+                    stationCounts[id] += counts[t][id];
+                }
+                if (stationCounts[id] > Integer.MAX_VALUE - 8) {
+                    throw new IllegalArgumentException("Too many rows for " + header.names()[id] + ": " + stationCounts[id]);
+                }
+            }
+            MemorySegment scratchData = scratchChannel.map(FileChannel.MapMode.READ_WRITE, 0, scratchSize, arena);
+            IntStream.range(0, threads).parallel().forEach(t -> {
+                long[] cursor = cursors[t];
+                for (long offset = threadStarts[t]; offset < threadStarts[t + 1]; offset += recordSize) {
+                    int id = BinaryMeasurements.stationId(rows, offset, recordSize);
+                    scratchData.set(SHORT_LE, cursor[id], (short) BinaryMeasurements.reading(rows, offset, recordSize));
+                    cursor[id] += 2;
+                }
+            });
+
+            // Dictionary, index and runs
+            long dictionarySize = 0;
+            byte[][] names = new byte[stationCount][];
+            for (int id = 0; id < stationCount; id++) {
+                names[id] = header.names()[id].getBytes(StandardCharsets.UTF_8);
+                dictionarySize += 2 + names[id].length;
+            }
+            long index = align(FIXED_HEADER_SIZE + dictionarySize);
+            long[] runOffsets = new long[stationCount];
+            int[] bits = new int[stationCount];
+            long size = index + (long) stationCount * INDEX_ENTRY_SIZE;
+            for (int id = 0; id < stationCount; id++) {
+                bits[id] = stationCounts[id] == 0 ? 0 : 32 - Integer.numberOfLeadingZeros(maxs[id] - mins[id]);
+                runOffsets[id] = size;
+                size += align(runSize(stationCounts[id], bits[id]));
+            }
+            size += RUN_PADDING;
+
+            MemorySegment columns = out.map(FileChannel.MapMode.READ_WRITE, 0, size, arena);
+            columns.set(LONG_LE, 0, MAGIC);
+            columns.set(INT_LE, 8, stationCount);
+            columns.set(LONG_LE, 16, header.rows());
+            long offset = FIXED_HEADER_SIZE;
+            for (int id = 0; id < stationCount; id++) {
+                columns.set(SHORT_LE, offset, (short) names[id].length);
+                MemorySegment.copy(names[id], 0, columns, ValueLayout.JAVA_BYTE, offset + 2, names[id].length);
+                offset += 2 + names[id].length;
+
+                long entry = index + (long) id * INDEX_ENTRY_SIZE;
+                columns.set(LONG_LE, entry, runOffsets[id]);
+                columns.set(LONG_LE, entry + 8, stationCounts[id]);
+                columns.set(LONG_LE, entry + 16, sums[id]);
+                columns.set(SHORT_LE, entry + 24, (short) (stationCounts[id] == 0 ? 0 : mins[id]));
+                columns.set(SHORT_LE, entry + 26, (short) (stationCounts[id] == 0 ? 0 : maxs[id]));
+                columns.set(ValueLayout.JAVA_BYTE, entry + 28, (byte) bits[id]);
+            }
+            IntStream.range(0, stationCount).parallel().forEach(id -> {
+                short[] readings = new short[(int) stationCounts[id]];
+                MemorySegment.copy(scratchData, SHORT_LE, scratchStarts[id], readings, 0, readings.length);
+                Arrays.sort(readings);
+                pack(readings, mins[id], bits[id], columns, runOffsets[id]);
+            });
+        }
+    }
+
+    // Writes reading - min of each reading in the given number of bits, lowest bits first
+    private static void pack(short[] readings, int min, int bits, MemorySegment columns, long offset) {
+        if (bits == 0) {
+            return;
+        }
+        long pending = 0;
+        int pendingBits = 0;
+        for (short reading : readings) {
+            pending |= (long) (reading - min) << pendingBits;
+            pendingBits += bits;
+            if (pendingBits >= 32) {
+                columns.set(INT_LE, offset, (int) pending);
+                offset += 4;
+                pending >>>= 32;
+                pendingBits -= 32;
+            }
+        }
+        for (; pendingBits > 0; pendingBits -= 8) {
+            columns.set(ValueLayout.JAVA_BYTE, offset++, (byte) pending);
+            pending >>>= 8;
+        }
+    }
+
+    private static long runSize(long count, int bits) {
+        return (count * bits + 7) >>> 3;
+    }
+
+    private static long align(long offset) {
+        return (offset + 7) & ~7L;
+    }
+}
@@ -16,7 +16,10 @@
 package dev.morling.onebrc;
 
 import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
@@ -26,9 +29,18 @@ import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 import java.util.concurrent.ThreadLocalRandom;
 
+/**
+ * With --timestamps[=DAYS], rows get an epoch seconds column, station;epoch;temperature, spread evenly
+ * over DAYS days (1 by default) starting at 2024-01-01T00:00:00Z.
+ * <p>
+ * With --gzip[=MB], measurements.txt.gz is written instead, as independent gzip members of up to MB
+ * megabytes of rows each (4 by default), see {@link BlockGzip}.
+ */
 public class CreateMeasurementsFast {
 
     private static final Path MEASUREMENT_FILE = Path.of("./measurements.txt");
+    private static final Path COMPRESSED_MEASUREMENT_FILE = Path.of("./measurements.txt.gz");
+    private static final long TIMESTAMPS_START = 1_704_067_200L;
     static final Executor EXECUTOR_SERVICE = Executors.newWorkStealingPool();
 
     private record WeatherStation(String id, double meanTemperature) {
@@ -41,24 +53,38 @@ public class CreateMeasurementsFast {
     public static void main(String[] args) throws Exception {
         long start = System.currentTimeMillis();
 
-        if (args.length != 1) {
-            System.out.println("Usage: create_measurements.sh <number of records to create>");
+        if (args.length < 1) {
+            System.out.println("Usage: create_measurements.sh <number of records to create> [--timestamps[=DAYS]] [--gzip[=MB]]");
             System.exit(1);
         }
 
         int size = 0;
+        int days = 0;
+        int blockSize = 0;
         try {
             size = Integer.parseInt(args[0]);
+            for (int i = 1; i < args.length; i++) {
+                if (args[i].startsWith("--timestamps")) {
+                    days = args[i].startsWith("--timestamps=") ? Integer.parseInt(args[i].substring("--timestamps=".length())) : 1;
+                }
+                else if (args[i].startsWith("--gzip")) {
+                    blockSize = (args[i].startsWith("--gzip=") ? Integer.parseInt(args[i].substring("--gzip=".length())) : 4) << 20;
+                }
+                else {
+                    throw new NumberFormatException(args[i]);
+                }
+            }
         }
         catch (NumberFormatException e) {
-            System.out.println("Invalid value for <number of records to create>");
-            System.out.println("Usage: CreateMeasurements <number of records to create>");
+            System.out.println("Invalid value for <number of records to create>, DAYS or MB");
+            System.out.println("Usage: CreateMeasurements <number of records to create> [--timestamps[=DAYS]] [--gzip[=MB]]");
             System.exit(1);
         }
 
+        Path file = blockSize > 0 ? COMPRESSED_MEASUREMENT_FILE : MEASUREMENT_FILE;
         try {
-            Files.deleteIfExists(MEASUREMENT_FILE);
-            Files.createFile(MEASUREMENT_FILE);
+            Files.deleteIfExists(file);
+            Files.createFile(file);
         }
         catch (Exception e) {
             // ignore
@@ -510,17 +536,39 @@ public class CreateMeasurementsFast {
         }
         CompletableFuture<?>[] futures = new CompletableFuture[numberOfFutures];
 
+        long span = days * 86_400L;
+        int total = size;
+        int compressedBlockSize = blockSize;
         for (int n = 0; n < numberOfFutures; n++) {
             int finalN = n;
             futures[n] = CompletableFuture.runAsync(() -> {
                 StringBuilder builder = new StringBuilder();
                 for (int i = finalN * chunkSize; i <= (finalN + 1) * chunkSize - 1; i++) {
                     WeatherStation station = stations.get(ThreadLocalRandom.current().nextInt(stations.size()));
-                    builder.append(station.id())
-                            .append(";")
-                            .append(station.measurement())
+                    builder.append(station.id()).append(";");
+                    if (span > 0) {
+                        builder.append(TIMESTAMPS_START + i * span / total).append(";");
+                    }
+                    builder.append(station.measurement())
                             .append('\n');
                 }
+                if (compressedBlockSize > 0) {
+                    byte[] rows = builder.toString().getBytes(StandardCharsets.UTF_8);
+                    ByteArrayOutputStream members = new ByteArrayOutputStream(rows.length / 4);
+                    try {
+                        BlockGzip.write(members, rows, rows.length, compressedBlockSize);
+                        // Compressed in parallel, but the members of different chunks must not interleave
+                        synchronized (COMPRESSED_MEASUREMENT_FILE) {
+                            try (OutputStream out = Files.newOutputStream(COMPRESSED_MEASUREMENT_FILE, StandardOpenOption.APPEND)) {
+                                members.writeTo(out);
+                            }
+                        }
+                    }
+                    catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return;
+                }
                 try (BufferedWriter bw = Files.newBufferedWriter(MEASUREMENT_FILE, StandardOpenOption.APPEND)) {
                     bw.write(builder.toString());
                 }
@@ -0,0 +1,122 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.BiFunction;
+import java.util.stream.Stream;
+
+import dev.morling.onebrc.CalculateAverage_iziamos.ByteBackedResultSet;
+import dev.morling.onebrc.CalculateAverage_iziamos.LoopCursor;
+import dev.morling.onebrc.CalculateAverage_iziamos.ScalarLoopCursor;
+import dev.morling.onebrc.CalculateAverage_iziamos.VectorLoopCursor;
+
+import static java.nio.channels.FileChannel.MapMode.READ_ONLY;
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Offline benchmark comparing the loop cursors of CalculateAverage_iziamos. Runs each cursor over every given file
+ * (the test samples by default), checks both produce the same aggregates and reports the throughput of the cursor
+ * alone, without the result set.
+ */
+public class LoopCursorBenchmark_iziamos {
+    private static final String SAMPLES = "src/test/resources/samples";
+
+    public static void main(String[] args) throws Exception {
+        final List<Path> files = new ArrayList<>();
+        if (args.length == 0) {
+            try (Stream<Path> samples = Files.list(Path.of(SAMPLES))) {
+                samples.filter(p -> p.toString().endsWith(".txt")).sorted().forEach(files::add);
+            }
+        }
+        else {
+            for (String arg : args) {
+                files.add(Path.of(arg));
+            }
+        }
+
+        System.out.printf("%-45s %10s %12s %12s%n", "file", "cursor", "MB/s", "ns/row");
+        for (Path file : files) {
+            try (Arena arena = Arena.ofConfined();
+                    FileChannel channel = (FileChannel) Files.newByteChannel(file, READ)) {
+                final MemorySegment segment = channel.map(READ_ONLY, 0, channel.size(), arena);
+                final long start = segment.address();
+                final long end = start + segment.byteSize();
+
+                final Map<String, BiFunction<Long, Long, LoopCursor>> cursors = Map.of(
+                        "scalar", ScalarLoopCursor::new,
+                        "vector", (s, e) -> new VectorLoopCursor(segment, s, e));
+
+                final String expected = aggregate(new ScalarLoopCursor(start, end));
+                for (String name : List.of("scalar", "vector")) {
+                    final BiFunction<Long, Long, LoopCursor> cursor = cursors.get(name);
+                    if (!expected.equals(aggregate(cursor.apply(start, end)))) {
+                        throw new IllegalStateException(name + " cursor disagrees with scalar cursor on " + file);
+                    }
+
+                    final long rows = rows(cursor.apply(start, end));
+                    final BenchmarkLoop.Timing timing = BenchmarkLoop.measure(() -> walk(cursor.apply(start, end)));
+                    final double nanos = timing.nanosPerPass();
+
+                    System.out.printf("%-45s %10s %12.1f %12.2f%n", file.getFileName(), name,
+                            ((end - start) / 1e6) / (nanos / 1e9), nanos / rows);
+                }
+            }
+        }
+    }
+
+    private static String aggregate(final LoopCursor cursor) {
+        final long result = CalculateAverage_iziamos.processEvents(cursor);
+        final Map<String, String> output = new TreeMap<>();
+        ByteBackedResultSet.forEach(result, (name, min, max, sum, count) -> output.put(name, min + "/" + sum + "/" + max + "/" + count));
+        ByteBackedResultSet.free(result);
+        return output.toString();
+    }
+
+    private static long rows(final LoopCursor cursor) {
+        long rows = 0;
+        while (cursor.hasMore()) {
+            cursor.getCurrentAddress();
+            cursor.getStringLength();
+            cursor.getHash();
+            cursor.getCurrentValue();
+            ++rows;
+        }
+        return rows;
+    }
+
+    /**
+     * Reads every row of the cursor, as processEvents would, and returns a value depending on all of them.
+     */
+    private static long walk(final LoopCursor cursor) {
+        long blackhole = 0;
+        while (cursor.hasMore()) {
+            blackhole += cursor.getCurrentAddress();
+            blackhole += cursor.getStringLength();
+            blackhole ^= cursor.getHash();
+            blackhole += cursor.getCurrentValue();
+        }
+        return blackhole;
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.PrintStream;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.DelimiterScanner;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Dialect;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Query;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.RowParser;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Segment;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Stations;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.StationTable;
+
+/**
+ * Estimates the result of CalculateAverage_albertoventurini_adaptive --sample=PERCENT from a random sample
+ * of the input, for previews of files too big to wait for.
+ * <p>
+ * The inputs are cut into 1 MB blocks (at the first line start after each multiple of 1 MB), and the given
+ * percentage of them is drawn at random, without replacement, from all files. The blocks are parsed in
+ * rounds of a few per thread; the tables keep the sum of squares, as with --stddev, so after each round the
+ * 95% confidence interval of each station's mean is known: 1.96 s / sqrt(n), with the finite population
+ * correction for the share of bytes sampled. With --max-error=T, sampling stops as soon as the interval of
+ * every station seen is within +/-T. Min and max are those of the sampled rows only, and stations that don't
+ * occur in the sample are missing.
+ * <p>
+ * The interval treats the sampled rows as independent. That holds for measurements.txt, but in a feed
+ * sorted by time or station, rows of a block are alike and the true error is larger.
+ */
+public final class Sampler_albertoventurini_adaptive {
+    private static final long BLOCK_SIZE = 1 << 20;
+    private static final int BLOCKS_PER_ROUND = 4;
+    // Of a two-sided 95% interval of the normal distribution
+    private static final double Z = 1.96;
+
+    private final double fraction;
+    // In units of the last digit, 0 to sample the whole fraction
+    private final double maxError;
+    private final long seed;
+
+    private long totalBytes;
+    private final AtomicLong sampledBytes = new AtomicLong();
+    private int blockCount;
+    private int sampledBlocks;
+    private boolean stoppedEarly;
+
+    Sampler_albertoventurini_adaptive(double fraction, double maxError, long seed) {
+        this.fraction = fraction;
+        this.maxError = maxError;
+        this.seed = seed;
+    }
+
+    /**
+     * Aggregates a sample of the files with the given number of threads. Returns the stations by name, with
+     * the sum of their squared readings.
+     */
+    Map<String, long[]> aggregate(List<MemorySegment> files, Dialect dialect, RowParser<Stations> parser, DelimiterScanner scanner, int threads)
+            throws InterruptedException {
+        // Global index of the first block of each file, then the block count
+        long[] firstBlocks = new long[files.size() + 1];
+        long[] dataStarts = new long[files.size()];
+        for (int f = 0; f < files.size(); f++) {
+            MemorySegment data = files.get(f);
+            dataStarts[f] = dialect.dataStart(data);
+            firstBlocks[f + 1] = firstBlocks[f] + (data.byteSize() + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            totalBytes += data.byteSize() - dataStarts[f];
+        }
+        blockCount = Math.toIntExact(firstBlocks[files.size()]);
+        int target = (int) Math.min(blockCount, Math.max(1, Math.ceil(fraction * blockCount)));
+
+        // The first target blocks of a random permutation
+        int[] order = new int[blockCount];
+        Arrays.setAll(order, i -> i);
+        SplittableRandom random = new SplittableRandom(seed);
+        for (int i = 0; i < target; i++) {
+            int j = random.nextInt(i, blockCount);
+            int swap = order[i];
+            order[i] = order[j];
+            order[j] = swap;
+        }
+
+        Query query = new Query(0, true, null, null, Integer.MIN_VALUE, Integer.MAX_VALUE);
+        StationTable[] tables = new StationTable[threads];
+        for (int i = 0; i < threads; i++) {
+            tables[i] = new StationTable(StationTable.DEFAULT_CAPACITY, query);
+        }
+        AtomicInteger nextBlock = new AtomicInteger();
+        Map<String, long[]> result = new TreeMap<>();
+        while (sampledBlocks < target) {
+            int roundEnd = Math.min(target, sampledBlocks + threads * BLOCKS_PER_ROUND);
+            Runnable[] work = new Runnable[threads];
+            for (int i = 0; i < threads; i++) {
+                StationTable table = tables[i];
+                work[i] = () -> {
+                    int next;
+                    while ((next = nextBlock.getAndIncrement()) < roundEnd) {
+                        Segment block = block(files, firstBlocks, dataStarts, order[next]);
+                        if (block == null) {
+                            continue;
+                        }
+                        long tailStart = CalculateAverage_albertoventurini_adaptive.processMapped(parser, scanner, block, table);
+                        if (tailStart < block.end()) {
+                            CalculateAverage_albertoventurini_adaptive.processTail(parser, scanner, new Segment(block.data(), tailStart, block.end()), table);
+                        }
+                        sampledBytes.addAndGet(block.end() - block.start());
+                    }
+                };
+            }
+            CalculateAverage_albertoventurini_adaptive.runWorkers(work);
+            nextBlock.set(roundEnd);
+            sampledBlocks = roundEnd;
+
+            result = new TreeMap<>();
+            for (StationTable table : tables) {
+                table.mergeInto(result);
+            }
+            if (maxError > 0 && sampledBlocks < target && converged(result)) {
+                stoppedEarly = true;
+                break;
+            }
+        }
+        return result;
+    }
+
+    // The rows starting in the block, or null if there are none
+    private static Segment block(List<MemorySegment> files, long[] firstBlocks, long[] dataStarts, int index) {
+        // The file with firstBlocks[f] <= index < firstBlocks[f + 1], skipping empty files
+        int f = Arrays.binarySearch(firstBlocks, index);
+        f = f >= 0 ? f : -f - 2;
+        while (firstBlocks[f + 1] <= index) {
+            f++;
+        }
+        MemorySegment data = files.get(f);
+        long offset = (index - firstBlocks[f]) * BLOCK_SIZE;
+        long start = Math.max(dataStarts[f], offset == 0 ? 0 : CalculateAverage_albertoventurini_adaptive.nextLineStart(data, offset));
+        long end = CalculateAverage_albertoventurini_adaptive.nextLineStart(data, Math.min(data.byteSize(), offset + BLOCK_SIZE));
+        return start < end ? new Segment(data, start, end) : null;
+    }
+
+    private boolean converged(Map<String, long[]> stations) {
+        for (long[] stats : stations.values()) {
+            if (!(halfWidth(stats) <= maxError)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Half the width of the confidence interval of the station's mean, in units of the last digit; NaN for
+     * stations sampled only once.
+     */
+    double halfWidth(long[] stats) {
+        long n = stats[3];
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double low = (double) (stats[4] >>> 1) * 2 + (stats[4] & 1);
+        double squares = Math.scalb((double) stats[5], Long.SIZE) + low;
+        double variance = Math.max(0, (squares - (double) stats[2] * stats[2] / n) / (n - 1));
+        double unsampled = 1 - (double) sampledBytes.get() / totalBytes;
+        return Z * Math.sqrt(variance / n * unsampled);
+    }
+
+    /**
+     * Prints the stations like name=min/mean±error/max, and how much was sampled to stderr.
+     */
+    void print(Map<String, long[]> stations, Dialect dialect, PrintStream out) {
+        StringBuilder sb = new StringBuilder("{");
+        for (Map.Entry<String, long[]> entry : stations.entrySet()) {
+            if (sb.length() > 1) {
+                sb.append(", ");
+            }
+            long[] stats = entry.getValue();
+            sb.append(entry.getKey()).append('=')
+                    .append(dialect.format(stats[0])).append('/')
+                    .append(dialect.format(Math.round((double) stats[2] / stats[3])));
+            double halfWidth = halfWidth(stats);
+            if (!Double.isNaN(halfWidth)) {
+                sb.append('±').append(dialect.format((long) Math.ceil(halfWidth)));
+            }
+            sb.append('/').append(dialect.format(stats[1]));
+        }
+        out.println(sb.append('}'));
+        System.err.printf("Sampled %d of %d blocks (%.2f%% of the bytes) with seed %d%s, 95%% confidence intervals%n", sampledBlocks, blockCount,
+                100.0 * sampledBytes.get() / Math.max(1, totalBytes), seed, stoppedEarly ? ", stopped early" : "");
+    }
+}
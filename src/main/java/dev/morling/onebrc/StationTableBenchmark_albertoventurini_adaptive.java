@@ -0,0 +1,211 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.SharedStationTable;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.StationTable;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Stations;
+
+/**
+ * Offline benchmark comparing per-thread station tables plus merge with the shared lock-free table of
+ * CalculateAverage_albertoventurini_adaptive, over synthetic keys in memory (no parsing).
+ * For each key count and thread count, the same rows are added in both modes, the results are checked
+ * to be equal, and the mean time of a run (including table allocation and merge into the final map) over
+ * BenchmarkLoop's budgets is reported. Per-thread runs that would need more than half the heap are skipped.
+ * <p>
+ * Usage: [--threads=1,2,...] [--keys=400,...] [--rows=N]
+ */
+public class StationTableBenchmark_albertoventurini_adaptive {
+    private static final int[] DEFAULT_THREADS = { 1, 2, 4, 8, 16, 32, 64, 128 };
+    private static final int[] DEFAULT_KEYS = { 400, 10_000, 100_000, 1_000_000 };
+    private static final int DEFAULT_ROWS = 10_000_000;
+    // Shorter than the defaults, as there are many configurations
+    private static final long WARMUP_NANOS = 500_000_000L;
+    private static final long MEASURE_NANOS = 1_000_000_000L;
+
+    // Bytes per slot of StationTable: six int arrays and one long array
+    private static final int PER_THREAD_SLOT_BYTES = 6 * Integer.BYTES + Long.BYTES;
+
+    private final MemorySegment names;
+    private final long[] nameStarts;
+    private final int[] nameLengths;
+    private final long[] hashes;
+    private final int[] rowKeys;
+    private final int[] rowValues;
+
+    private StationTableBenchmark_albertoventurini_adaptive(int keys, int rows, Random random) {
+        // Unique names of 3 to 24 bytes: random letters followed by the key index
+        byte[][] keyBytes = new byte[keys][];
+        int total = 0;
+        for (int k = 0; k < keys; k++) {
+            StringBuilder name = new StringBuilder();
+            int letters = 1 + random.nextInt(18);
+            for (int i = 0; i < letters; i++) {
+                name.append((char) ('a' + random.nextInt(26)));
+            }
+            keyBytes[k] = name.append(Integer.toString(k, 36)).toString().getBytes(StandardCharsets.UTF_8);
+            total += keyBytes[k].length;
+        }
+
+        // The hash reads 8 bytes at the start of a name
+        byte[] data = new byte[total + Long.BYTES];
+        nameStarts = new long[keys];
+        nameLengths = new int[keys];
+        hashes = new long[keys];
+        names = MemorySegment.ofArray(data);
+        int offset = 0;
+        for (int k = 0; k < keys; k++) {
+            System.arraycopy(keyBytes[k], 0, data, offset, keyBytes[k].length);
+            nameStarts[k] = offset;
+            nameLengths[k] = keyBytes[k].length;
+            hashes[k] = CalculateAverage_albertoventurini_adaptive.hash(names, offset, offset + nameLengths[k], nameLengths[k]);
+            offset += keyBytes[k].length;
+        }
+
+        rowKeys = new int[rows];
+        rowValues = new int[rows];
+        for (int i = 0; i < rows; i++) {
+            rowKeys[i] = random.nextInt(keys);
+            rowValues[i] = random.nextInt(1999) - 999;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int[] threadCounts = DEFAULT_THREADS;
+        int[] keyCounts = DEFAULT_KEYS;
+        int rows = DEFAULT_ROWS;
+        for (String arg : args) {
+            String value = arg.substring(arg.indexOf('=') + 1);
+            if (arg.startsWith("--threads=")) {
+                threadCounts = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+            else if (arg.startsWith("--keys=")) {
+                keyCounts = Arrays.stream(value.split(",")).mapToInt(Integer::parseInt).toArray();
+            }
+            else if (arg.startsWith("--rows=")) {
+                rows = Integer.parseInt(value);
+            }
+            else {
+                throw new IllegalArgumentException("Unknown option: " + arg);
+            }
+        }
+
+        System.out.printf("%9s %8s %11s %10s %10s %10s %10s%n", "keys", "threads", "mode", "ms", "merge ms", "Mrows/s", "table MB");
+        for (int keys : keyCounts) {
+            StationTableBenchmark_albertoventurini_adaptive benchmark = new StationTableBenchmark_albertoventurini_adaptive(keys, rows, new Random(keys));
+            for (int threads : threadCounts) {
+                Result shared = benchmark.shared(threads);
+                Result perThread = null;
+                long perThreadBytes = (long) threads * capacity(keys) * PER_THREAD_SLOT_BYTES;
+                if (perThreadBytes < Runtime.getRuntime().maxMemory() / 2) {
+                    perThread = benchmark.perThread(threads);
+                    if (!equal(perThread.stations, shared.stations)) {
+                        throw new IllegalStateException("Shared and per-thread tables disagree for " + keys + " keys and " + threads + " threads");
+                    }
+                    perThread.print(keys, threads, "per-thread", rows,
+                            BenchmarkLoop.measure(() -> benchmark.perThread(threads).stations.size(), WARMUP_NANOS, MEASURE_NANOS));
+                }
+                else {
+                    System.out.printf("%9d %8d %11s %10s %10s %10s %10.1f%n", keys, threads, "per-thread", "skipped", "", "", perThreadBytes / 1e6);
+                }
+                shared.print(keys, threads, "shared", rows, BenchmarkLoop.measure(() -> benchmark.shared(threads).stations.size(), WARMUP_NANOS, MEASURE_NANOS));
+            }
+        }
+    }
+
+    // The outcome of one run; its time is measured separately, over many runs
+    private record Result(Map<String, long[]> stations, long mergeNanos, long tableBytes) {
+        void print(int keys, int threads, String mode, int rows, BenchmarkLoop.Timing timing) {
+            double nanos = timing.nanosPerPass();
+            System.out.printf("%9d %8d %11s %10.1f %10.1f %10.1f %10.1f%n", keys, threads, mode, nanos / 1e6, mergeNanos / 1e6,
+                    rows / 1e6 / (nanos / 1e9), tableBytes / 1e6);
+        }
+    }
+
+    private static int capacity(int keys) {
+        return Math.max(1 << 10, Integer.highestOneBit(keys * 2 - 1) << 1);
+    }
+
+    private Result perThread(int threads) throws InterruptedException {
+        StationTable[] tables = new StationTable[threads];
+        for (int i = 0; i < threads; i++) {
+            tables[i] = new StationTable(capacity(nameStarts.length));
+        }
+        run(tables);
+        long mergeStart = System.nanoTime();
+        Map<String, long[]> result = new TreeMap<>();
+        for (StationTable table : tables) {
+            table.mergeInto(result);
+        }
+        long end = System.nanoTime();
+        return new Result(result, end - mergeStart, (long) threads * capacity(nameStarts.length) * PER_THREAD_SLOT_BYTES);
+    }
+
+    private Result shared(int threads) throws InterruptedException {
+        int capacity = capacity(nameStarts.length);
+        SharedStationTable shared = new SharedStationTable(capacity, threads);
+        Stations[] views = new Stations[threads];
+        for (int i = 0; i < threads; i++) {
+            views[i] = shared.forWorker(i);
+        }
+        run(views);
+        long mergeStart = System.nanoTime();
+        Map<String, long[]> result = new TreeMap<>();
+        shared.mergeInto(result);
+        long end = System.nanoTime();
+        long tableBytes = (long) capacity * (Long.BYTES + Long.BYTES + shared.stripes() * 4L * Long.BYTES);
+        return new Result(result, end - mergeStart, tableBytes);
+    }
+
+    // Each thread adds its share of the rows
+    private void run(Stations[] tables) throws InterruptedException {
+        int threads = tables.length;
+        Thread[] workers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            Stations table = tables[t];
+            int from = (int) ((long) rowKeys.length * t / threads);
+            int to = (int) ((long) rowKeys.length * (t + 1) / threads);
+            workers[t] = Thread.ofPlatform().start(() -> {
+                for (int i = from; i < to; i++) {
+                    int k = rowKeys[i];
+                    table.add(names, nameStarts[k], nameLengths[k], hashes[k], rowValues[i]);
+                }
+            });
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+    }
+
+    private static boolean equal(Map<String, long[]> a, Map<String, long[]> b) {
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (Map.Entry<String, long[]> entry : a.entrySet()) {
+            if (!Arrays.equals(entry.getValue(), b.get(entry.getKey()))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.List;
+import java.util.Random;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Offline benchmark of the temperature decoders: the arithmetic one of CalculateAverage_merykitty (also used
+ * by CalculateAverage_thomaswue), the modulo perfect hash of CalculateAverage_hundredwatt and the
+ * hash-and-displace table of TemperatureDecoder_hundredwatt.
+ * <p>
+ * First checks that all three agree on every reading followed by random bytes, then decodes words drawn
+ * like in CreateMeasurements (a mean per station plus gaussian noise, followed by '\n' and the next row)
+ * and reports ns per word. The results depend on the CPU: the arithmetic decoder is a chain of dependent
+ * ALU operations, the tables trade most of them for an L1 load.
+ * <p>
+ * Usage: [number of words, 1M by default]
+ */
+public class TemperatureDecoderBenchmark_hundredwatt {
+    private record Decoder(String name, LongToIntFunction decode) {
+    }
+
+    private static final List<Decoder> DECODERS = List.of(
+            new Decoder("arithmetic", TemperatureDecoderBenchmark_hundredwatt::arithmetic),
+            new Decoder("modulo-table", TemperatureDecoderBenchmark_hundredwatt::moduloTable),
+            new Decoder("displace-table", TemperatureDecoder_hundredwatt::decode));
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 1_000_000;
+        Random random = new Random(42);
+
+        for (int reading = TemperatureDecoder_hundredwatt.MIN; reading <= TemperatureDecoder_hundredwatt.MAX; reading++) {
+            for (int i = 0; i < 16; i++) {
+                long word = withTail(reading, random);
+                int expected = reading << 8 | TemperatureDecoder_hundredwatt.encodedLength(reading);
+                for (Decoder decoder : DECODERS) {
+                    if (decoder.decode.applyAsInt(word) != expected) {
+                        throw new IllegalStateException(decoder.name + " decodes " + Long.toHexString(word) + " wrong");
+                    }
+                }
+            }
+        }
+
+        double[] means = new double[400];
+        for (int i = 0; i < means.length; i++) {
+            means[i] = random.nextDouble() * 70 - 30;
+        }
+        long[] words = new long[count];
+        for (int i = 0; i < count; i++) {
+            double value = means[random.nextInt(means.length)] + random.nextGaussian() * 10;
+            int reading = (int) Math.max(-999, Math.min(999, Math.round(value * 10)));
+            words[i] = withTail(reading, random);
+        }
+
+        System.out.printf("%-16s %10s%n", "decoder", "ns/word");
+        for (int d = 0; d < DECODERS.size(); d++) {
+            int decoder = d;
+            BenchmarkLoop.Timing timing = BenchmarkLoop.measure(() -> decodeAll(decoder, words));
+            System.out.printf("%-16s %10.2f%n", DECODERS.get(d).name, timing.nanosPerPass() / words.length);
+        }
+    }
+
+    // The reading followed by '\n' and random bytes, as the decoders see it after the ';'
+    private static long withTail(int reading, Random random) {
+        int length = TemperatureDecoder_hundredwatt.encodedLength(reading);
+        long word = TemperatureDecoder_hundredwatt.encode(reading) | (long) '\n' << (length << 3);
+        int tailBits = (length + 1) << 3;
+        return tailBits == Long.SIZE ? word : word | random.nextLong() << tailBits;
+    }
+
+    /**
+     * Decodes all words and returns the sum of values and lengths, as a parser would add the length to its
+     * position. Each decoder has its own loop, so that a shared call site doesn't end up megamorphic and
+     * favour whichever decoder runs first.
+     */
+    private static long decodeAll(int decoder, long[] words) {
+        long sum = 0;
+        switch (decoder) {
+            case 0 -> {
+                for (long word : words) {
+                    int d = arithmetic(word);
+                    sum += (d >> 8) + (d & 0xFF);
+                }
+            }
+            case 1 -> {
+                for (long word : words) {
+                    int d = moduloTable(word);
+                    sum += (d >> 8) + (d & 0xFF);
+                }
+            }
+            default -> {
+                for (long word : words) {
+                    int d = TemperatureDecoder_hundredwatt.decode(word);
+                    sum += (d >> 8) + (d & 0xFF);
+                }
+            }
+        }
+        return sum;
+    }
+
+    // See CalculateAverage_merykitty
+    private static int arithmetic(long word) {
+        int dotPosition = Long.numberOfTrailingZeros(~word & 0x10101000);
+        long signed = (~word << 59) >> 63;
+        long designMask = ~(signed & 0xFF);
+        long digits = ((word & designMask) << (28 - dotPosition)) & 0x0F000F0F00L;
+        long absValue = ((digits * 0x640a0001) >>> 32) & 0x3FF;
+        int value = (int) ((absValue ^ signed) - signed);
+        return value << 8 | ((dotPosition >>> 3) + 2);
+    }
+
+    // See CalculateAverage_hundredwatt
+    private static int moduloTable(long word) {
+        long newline = (word - 0x0B0B0B0B0B0B0B0BL) & 0x8080808080808080L;
+        int newlinePosition = Long.numberOfTrailingZeros(newline) - 8;
+        long key = word & ~(-(1L << newlinePosition));
+        int slot = (int) (((key * CalculateAverage_hundredwatt.PERFECT_HASH_SEED) & ~(1L << 63)) % CalculateAverage_hundredwatt.TEMPERATURE_SLOTS);
+        return CalculateAverage_hundredwatt.TEMPERATURES[slot] << 8 | ((newlinePosition + 1) >>> 3);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+
+/**
+ * Table-driven decoding of the temperature after the ';', built from the encodings of all 1999 readings
+ * enumerated in PerfectHashSearch_hundredwatt.
+ * <p>
+ * The 8-byte little-endian word starting after the ';' is cut after the fraction digit (found with the
+ * '.' trick from CalculateAverage_merykitty) and looked up in a perfect hash table giving the reading and
+ * the length of its text. Unlike the modulo 5003 table of CalculateAverage_hundredwatt, the table has a
+ * power of two size, which a single multiplicative hash can't fill without collisions. So it uses
+ * hash-and-displace instead: the top bits of the hash pick a bucket, whose displacement is XOR-ed into
+ * the slot. The displacements are found once at class initialization, and the whole thing takes 17 KB,
+ * so it stays in L1.
+ * <p>
+ * Words that aren't a valid reading decode to garbage.
+ */
+public final class TemperatureDecoder_hundredwatt {
+    public static final int MIN = -999;
+    public static final int MAX = 999;
+
+    private static final int BUCKET_BITS = 9;
+    private static final int SLOT_BITS = 12;
+    private static final int SLOT_MASK = (1 << SLOT_BITS) - 1;
+
+    private static final long MULTIPLIER;
+    private static final short[] DISPLACEMENTS = new short[1 << BUCKET_BITS];
+    // reading << 8 | length
+    private static final int[] ENTRIES = new int[1 << SLOT_BITS];
+
+    static {
+        SplittableRandom random = new SplittableRandom(1999);
+        long multiplier;
+        do {
+            multiplier = random.nextLong() | 1;
+        } while (!build(multiplier));
+        MULTIPLIER = multiplier;
+    }
+
+    private TemperatureDecoder_hundredwatt() {
+    }
+
+    /**
+     * Decodes the reading at the start of word, the 8 bytes following the ';' in little-endian order.
+     *
+     * @return the reading in tenths of a degree shifted left by 8, or-ed with the length of its text (3 to 5)
+     */
+    public static int decode(long word) {
+        // Bit 4 of the '.', which is followed by one digit: the text has (dotPosition - 4) / 8 + 2 bytes
+        int dotPosition = Long.numberOfTrailingZeros(~word & 0x10101000);
+        long key = word & (-1L >>> (52 - dotPosition));
+        long hash = key * MULTIPLIER;
+        int slot = ((int) (hash >>> 32) ^ DISPLACEMENTS[(int) (hash >>> (64 - BUCKET_BITS))]) & SLOT_MASK;
+        return ENTRIES[slot];
+    }
+
+    public static int value(int decoded) {
+        return decoded >> 8;
+    }
+
+    public static int length(int decoded) {
+        return decoded & 0xFF;
+    }
+
+    /**
+     * The text of a reading, e.g. "-4.3", as a little-endian word.
+     */
+    public static long encode(int reading) {
+        long word = 0;
+        int shift = 0;
+        if (reading < 0) {
+            word |= (long) '-';
+            shift += 8;
+        }
+        int abs = Math.abs(reading);
+        if (abs >= 100) {
+            word |= (long) ('0' + abs / 100) << shift;
+            shift += 8;
+        }
+        word |= (long) ('0' + abs / 10 % 10) << shift;
+        shift += 8;
+        word |= (long) '.' << shift;
+        shift += 8;
+        word |= (long) ('0' + abs % 10) << shift;
+        return word;
+    }
+
+    public static int encodedLength(int reading) {
+        return (reading < 0 ? 1 : 0) + (Math.abs(reading) >= 100 ? 2 : 1) + 2;
+    }
+
+    // Fills the tables for this multiplier, biggest buckets first. Returns false if some bucket doesn't fit.
+    private static boolean build(long multiplier) {
+        List<List<Integer>> buckets = new ArrayList<>();
+        for (int i = 0; i < DISPLACEMENTS.length; i++) {
+            buckets.add(new ArrayList<>());
+        }
+        for (int reading = MIN; reading <= MAX; reading++) {
+            long hash = encode(reading) * multiplier;
+            buckets.get((int) (hash >>> (64 - BUCKET_BITS))).add(reading);
+        }
+        Integer[] order = new Integer[buckets.size()];
+        Arrays.setAll(order, i -> i);
+        Arrays.sort(order, (a, b) -> buckets.get(b).size() - buckets.get(a).size());
+
+        boolean[] used = new boolean[ENTRIES.length];
+        for (int bucket : order) {
+            List<Integer> readings = buckets.get(bucket);
+            int displacement = findDisplacement(readings, multiplier, used);
+            if (displacement < 0) {
+                return false;
+            }
+            DISPLACEMENTS[bucket] = (short) displacement;
+            for (int reading : readings) {
+                int slot = ((int) ((encode(reading) * multiplier) >>> 32) ^ displacement) & SLOT_MASK;
+                used[slot] = true;
+                ENTRIES[slot] = reading << 8 | encodedLength(reading);
+            }
+        }
+        return true;
+    }
+
+    private static int findDisplacement(List<Integer> readings, long multiplier, boolean[] used) {
+        int[] slots = new int[readings.size()];
+        for (int displacement = 0; displacement <= SLOT_MASK; displacement++) {
+            boolean fits = true;
+            for (int i = 0; i < slots.length && fits; i++) {
+                slots[i] = ((int) ((encode(readings.get(i)) * multiplier) >>> 32) ^ displacement) & SLOT_MASK;
+                fits = !used[slots[i]];
+                for (int j = 0; j < i && fits; j++) {
+                    fits = slots[j] != slots[i];
+                }
+            }
+            if (fits) {
+                return displacement;
+            }
+        }
+        return -1;
+    }
+}
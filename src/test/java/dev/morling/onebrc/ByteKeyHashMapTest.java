@@ -0,0 +1,173 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class ByteKeyHashMapTest {
+
+    private static byte[] bytes(String key) {
+        return key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static int put(ByteKeyHashMap map, String key) {
+        byte[] b = bytes(key);
+        return map.put(b, 0, b.length, ByteKeyHashMap.hash(b, 0, b.length));
+    }
+
+    private static int get(ByteKeyHashMap map, String key) {
+        byte[] b = bytes(key);
+        return map.get(b, 0, b.length, ByteKeyHashMap.hash(b, 0, b.length));
+    }
+
+    @Test
+    void putGivesDenseIndexesAndKeepsThem() {
+        ByteKeyHashMap map = new ByteKeyHashMap();
+        assertThat(put(map, "Hamburg")).isEqualTo(0);
+        assertThat(put(map, "Bulawayo")).isEqualTo(1);
+        assertThat(put(map, "Hamburg")).isEqualTo(0);
+        assertThat(put(map, "")).isEqualTo(2);
+
+        assertThat(map.size()).isEqualTo(3);
+        assertThat(map.keyString(1)).isEqualTo("Bulawayo");
+        assertThat(map.key(0)).isEqualTo(bytes("Hamburg"));
+        assertThat(map.keyLength(2)).isZero();
+    }
+
+    @Test
+    void getFindsOnlyAddedKeys() {
+        ByteKeyHashMap map = new ByteKeyHashMap();
+        put(map, "Hamburg");
+        put(map, "São Paulo");
+
+        assertThat(get(map, "São Paulo")).isEqualTo(1);
+        assertThat(get(map, "Hamburg")).isEqualTo(0);
+        assertThat(get(map, "Hamburger")).isEqualTo(-1);
+        assertThat(get(map, "Hambur")).isEqualTo(-1);
+        assertThat(map.size()).isEqualTo(2);
+    }
+
+    @Test
+    void segmentAndArrayKeysAreTheSame() {
+        ByteKeyHashMap map = new ByteKeyHashMap();
+        byte[] data = bytes("Hamburg;12.0\nBulawayo;8.9\n");
+        MemorySegment segment = MemorySegment.ofArray(data);
+
+        int hamburg = map.put(segment, 0, 7, ByteKeyHashMap.hash(segment, 0, 7));
+        int bulawayo = map.put(segment, 13, 8, ByteKeyHashMap.hash(segment, 13, 8));
+
+        assertThat(get(map, "Hamburg")).isEqualTo(hamburg);
+        assertThat(map.get(data, 13, 8, ByteKeyHashMap.hash(data, 13, 8))).isEqualTo(bulawayo);
+        assertThat(map.get(segment, 13, 7, ByteKeyHashMap.hash(segment, 13, 7))).isEqualTo(-1);
+    }
+
+    @Test
+    void growsPastTheLoadFactor() {
+        // 16 slots resize at 14 keys, 32 at 28 and so on
+        ByteKeyHashMap map = new ByteKeyHashMap(1);
+        int count = 10_000;
+        for (int i = 0; i < count; i++) {
+            assertThat(put(map, "station" + i)).isEqualTo(i);
+        }
+
+        assertThat(map.size()).isEqualTo(count);
+        for (int i = 0; i < count; i++) {
+            assertThat(get(map, "station" + i)).isEqualTo(i);
+            assertThat(map.keyString(i)).isEqualTo("station" + i);
+        }
+        assertThat(get(map, "station" + count)).isEqualTo(-1);
+    }
+
+    @Test
+    void collidingHashesAreKeptApart() {
+        ByteKeyHashMap map = new ByteKeyHashMap();
+        for (int i = 0; i < 100; i++) {
+            byte[] key = bytes("key" + i);
+            assertThat(map.put(key, 0, key.length, 42)).isEqualTo(i);
+        }
+        for (int i = 0; i < 100; i++) {
+            byte[] key = bytes("key" + i);
+            assertThat(map.get(key, 0, key.length, 42)).isEqualTo(i);
+        }
+    }
+
+    @Test
+    void keyHashIsTheMixedHash() {
+        ByteKeyHashMap map = new ByteKeyHashMap();
+        byte[] key = bytes("Hamburg");
+        int index = map.put(key, 0, key.length, 7);
+
+        assertThat(map.keyHash(index)).isNotEqualTo(7);
+        ByteKeyHashMap other = new ByteKeyHashMap();
+        other.put(bytes("x"), 0, 1, 3);
+        assertThat(other.put(key, 0, key.length, 7)).isEqualTo(1);
+        assertThat(other.keyHash(1)).isEqualTo(map.keyHash(index));
+    }
+
+    @Test
+    void clearRemovesAllKeys() {
+        ByteKeyHashMap map = new ByteKeyHashMap();
+        for (int i = 0; i < 100; i++) {
+            put(map, "station" + i);
+        }
+        map.clear();
+
+        assertThat(map.size()).isZero();
+        assertThat(get(map, "station1")).isEqualTo(-1);
+        assertThatThrownBy(() -> map.keyString(0)).isInstanceOf(IndexOutOfBoundsException.class);
+
+        assertThat(put(map, "station99")).isEqualTo(0);
+        assertThat(put(map, "Hamburg")).isEqualTo(1);
+        assertThat(map.keyString(0)).isEqualTo("station99");
+        assertThat(get(map, "Hamburg")).isEqualTo(1);
+    }
+
+    @Test
+    void behavesLikeHashMap() {
+        Random random = new Random(42);
+        ByteKeyHashMap map = new ByteKeyHashMap();
+        Map<String, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200_000; i++) {
+            // Few short keys, so that most operations hit existing ones
+            StringBuilder key = new StringBuilder();
+            int length = random.nextInt(4);
+            for (int j = 0; j < length; j++) {
+                key.append((char) ('a' + random.nextInt(20)));
+            }
+            String k = key.toString();
+            if (random.nextBoolean()) {
+                Integer index = expected.computeIfAbsent(k, unused -> expected.size());
+                assertThat(put(map, k)).isEqualTo(index);
+            }
+            else {
+                assertThat(get(map, k)).isEqualTo(expected.getOrDefault(k, -1));
+            }
+            assertThat(map.size()).isEqualTo(expected.size());
+        }
+        for (Map.Entry<String, Integer> entry : expected.entrySet()) {
+            assertThat(map.keyString(entry.getValue())).isEqualTo(entry.getKey());
+        }
+    }
+}
@@ -0,0 +1,182 @@
+/*
+ *  Copyright 2023 The original authors
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package dev.morling.onebrc;
+
+import java.io.IOException;
+import java.lang.foreign.MemorySegment;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Histogram;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Query;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.RankBy;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Ranked;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.SharedStationTable;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.StationFilter;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.StationTable;
+import dev.morling.onebrc.CalculateAverage_albertoventurini_adaptive.Stations;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class StationTableTest {
+
+    // More than fit in a table of the default capacity
+    private static final int MANY = 2 * StationTable.DEFAULT_CAPACITY;
+
+    /**
+     * The names station0, station1... one after the other, with the padding the hash reads past the end.
+     */
+    private static final class Names {
+        final MemorySegment data;
+        final long[] starts;
+        final int[] lengths;
+        final long[] hashes;
+
+        Names(int count) {
+            StringBuilder all = new StringBuilder();
+            starts = new long[count];
+            lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                starts[i] = all.length();
+                all.append("station").append(i);
+                lengths[i] = all.length() - (int) starts[i];
+            }
+            byte[] bytes = Arrays.copyOf(all.toString().getBytes(StandardCharsets.UTF_8), all.length() + Long.BYTES);
+            data = MemorySegment.ofArray(bytes);
+            hashes = new long[count];
+            for (int i = 0; i < count; i++) {
+                hashes[i] = CalculateAverage_albertoventurini_adaptive.hash(data, starts[i], starts[i] + lengths[i], lengths[i]);
+            }
+        }
+
+        // Station i gets the readings i % 100 and -(i % 100)
+        void addTo(Stations table) {
+            for (int i = 0; i < starts.length; i++) {
+                table.add(data, starts[i], lengths[i], hashes[i], i % 100);
+            }
+            for (int i = starts.length - 1; i >= 0; i--) {
+                table.add(data, starts[i], lengths[i], hashes[i], -(i % 100));
+            }
+        }
+    }
+
+    private static void assertAllStations(Map<String, long[]> result, int count) {
+        assertThat(result).hasSize(count);
+        for (int i = 0; i < count; i++) {
+            long[] stats = result.get("station" + i);
+            assertThat(stats).as("station" + i).isNotNull();
+            assertThat(stats[0]).isEqualTo(-(i % 100));
+            assertThat(stats[1]).isEqualTo(i % 100);
+            assertThat(stats[2]).isZero();
+            assertThat(stats[3]).isEqualTo(2);
+        }
+    }
+
+    @Test
+    void growsPastItsCapacity() {
+        Names names = new Names(MANY);
+        StationTable table = new StationTable(16);
+        names.addTo(table);
+
+        assertThat(table.size).isEqualTo(MANY);
+        Map<String, long[]> result = new TreeMap<>();
+        table.mergeInto(result);
+        assertAllStations(result, MANY);
+    }
+
+    @Test
+    void keepsSquaresAndHistogramsWhenGrowing() {
+        Names names = new Names(10_000);
+        StationTable table = new StationTable(16, new Query(999, true, null, null, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        names.addTo(table);
+
+        Map<String, long[]> result = new TreeMap<>();
+        Map<String, List<Histogram>> histograms = new TreeMap<>();
+        table.mergeInto(result, histograms);
+        assertAllStations(result, 10_000);
+        for (int i = 0; i < 10_000; i++) {
+            long square = (long) (i % 100) * (i % 100);
+            assertThat(result.get("station" + i)[4]).isEqualTo(2 * square);
+            assertThat(Histogram.percentiles(histograms.get("station" + i), new double[]{ 50, 100 }))
+                    .containsExactly(-(i % 100), i % 100);
+        }
+    }
+
+    @Test
+    void keepsDroppedStationsDroppedWhenGrowing(@TempDir Path directory) throws IOException {
+        Names names = new Names(10_000);
+        List<String> excluded = new ArrayList<>();
+        for (int i = 0; i < 10_000; i += 2) {
+            excluded.add("station" + i);
+        }
+        Path file = Files.write(directory.resolve("excluded.txt"), excluded);
+        StationFilter filter = new StationFilter(file, false);
+        StationTable table = new StationTable(16, new Query(0, false, null, filter, Integer.MIN_VALUE, Integer.MAX_VALUE));
+        names.addTo(table);
+
+        assertThat(table.size).isEqualTo(5_000);
+        Map<String, long[]> result = new TreeMap<>();
+        table.mergeInto(result);
+        assertThat(result).hasSize(5_000).doesNotContainKey("station0").containsKey("station1");
+        assertThat(result.get("station1")[3]).isEqualTo(2);
+    }
+
+    @Test
+    void ranksPartitionsPastTheirCapacity() {
+        Names names = new Names(MANY);
+        StationTable table = new StationTable(16);
+        names.addTo(table);
+
+        // Ties go to the first name
+        List<Ranked> top = CalculateAverage_albertoventurini_adaptive.rank(new StationTable[]{ table }, 3, RankBy.MAX, true, false);
+        assertThat(top).extracting(Ranked::name).containsExactly("station100099", "station100199", "station100299");
+    }
+
+    @Test
+    void sharedTableOverflowsPastItsCapacity() throws InterruptedException {
+        Names names = new Names(MANY);
+        int threads = 4;
+        SharedStationTable shared = new SharedStationTable(StationTable.DEFAULT_CAPACITY, threads);
+        Thread[] workers = new Thread[threads];
+        for (int i = 0; i < threads; i++) {
+            Stations table = shared.forWorker(i);
+            workers[i] = Thread.ofPlatform().start(() -> names.addTo(table));
+        }
+        for (Thread worker : workers) {
+            worker.join();
+        }
+
+        Map<String, long[]> result = new TreeMap<>();
+        shared.mergeInto(result);
+        assertThat(result).hasSize(MANY);
+        for (int i = 0; i < MANY; i++) {
+            long[] stats = result.get("station" + i);
+            assertThat(stats[0]).isEqualTo(-(i % 100));
+            assertThat(stats[1]).isEqualTo(i % 100);
+            assertThat(stats[2]).isZero();
+            assertThat(stats[3]).isEqualTo(2 * threads);
+        }
+    }
+}